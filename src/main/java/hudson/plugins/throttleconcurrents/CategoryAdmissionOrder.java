@@ -0,0 +1,195 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.NavigableSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.actions.ArgumentsAction;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+
+/**
+ * Admits waiting builds of categories with an {@link ThrottleJobProperty.ThrottleCategory#getAdmissionOrder()} other
+ * than {@link #QUEUE} in that order, instead of in whichever order {@code Queue.maintain()} reaches them.
+ *
+ * <p>With {@link #PRIORITY}, builds carry the priority of their job's {@link ThrottleJobProperty}, or of the innermost
+ * {@code throttle} step around a {@code node} block. Every
+ * {@link ThrottleJobProperty.ThrottleCategory#getAgingMinutes()} a build spends in the queue adds one to its priority,
+ * so that low-priority builds are not starved.
+ *
+ * <p>With {@link #SHORTEST_FIRST}, builds with a shorter estimated duration go first, which minimises the mean time
+ * spent in the queue under a fixed limit. With aging, builds are ranked by their response ratio instead, that is
+ * {@code (waiting + estimated) / estimated}, with waiting time weighted by
+ * {@code DEFAULT_AGING_MINUTES / agingMinutes}, so that a long build that has waited long enough overtakes new short
+ * ones. Builds without an estimate, such as those of new jobs, are neither held back nor hold back others.
+ *
+ * <p>When the category does not have room for every waiting build, a build is refused while a build of another task
+ * with a higher effective priority is waiting. Waiting builds come from {@link QueuedCategories}, which groups them by
+ * priority and by estimate, so the check only ranks the oldest build of each group rather than every queue item of the
+ * category. A queued build of another task only counts as waiting if it is
+ * {@linkplain QueuedCategories#countReady(String) ready}: one that is held back by other limits, or that waits for an
+ * offline label, would otherwise keep the freed capacity idle however long the others wait.
+ */
+final class CategoryAdmissionOrder {
+
+    /** Admit builds in queue order. */
+    static final String QUEUE = "queue";
+
+    /** Admit builds with the highest priority first. */
+    static final String PRIORITY = "priority";
+
+    /** Admit builds with the shortest estimated duration first. */
+    static final String SHORTEST_FIRST = "shortestFirst";
+
+    static final int DEFAULT_AGING_MINUTES = 10;
+
+    private CategoryAdmissionOrder() {}
+
+    /**
+     * Check whether a build of another task should be admitted before a build of the given task.
+     *
+     * @param task the task.
+     * @param categories the category names.
+     * @return the cause of blockage, or {@code null} if no waiting build goes first.
+     */
+    @CheckForNull
+    static CauseOfBlockage check(@NonNull Queue.Task task, @NonNull Collection<String> categories) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        long now = System.currentTimeMillis();
+        for (String catNm : categories) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(catNm);
+            if (category == null
+                    || QUEUE.equals(category.getAdmissionOrder())
+                    || category.getMaxConcurrentTotal() <= 0) {
+                continue;
+            }
+            if (QueuedCategories.count(catNm) < 2) {
+                continue;
+            }
+            double own = Double.NEGATIVE_INFINITY;
+            int ownReady = 0;
+            for (QueuedCategories.Tracked tracked : QueuedCategories.itemsOf(task)) {
+                if (!tracked.categories().contains(catNm)) {
+                    continue;
+                }
+                if (QueuedCategories.isReady(tracked)) {
+                    ownReady++;
+                }
+                if (own == Double.NEGATIVE_INFINITY) {
+                    // The oldest item of a task ranks highest.
+                    own = rank(category, tracked, now);
+                }
+            }
+            int others = QueuedCategories.countReady(catNm) - ownReady;
+            int free = category.getMaxConcurrentTotal() - CategoryOccupancy.get().total(catNm);
+            if (others == 0 || free > others) {
+                continue;
+            }
+            if (own == Double.NEGATIVE_INFINITY) {
+                own = rank(category, priorityOf(task), task.getEstimatedDuration(), now, now);
+            }
+            if (Double.isNaN(own)) {
+                continue;
+            }
+            if (bestOther(category, task, now) > own) {
+                return new ThrottleQueueTaskDispatcher.CategoryBlockage(
+                        SHORTEST_FIRST.equals(category.getAdmissionOrder())
+                                ? Messages._ThrottleQueueTaskDispatcher_ShorterBuildWaiting(catNm)
+                                : Messages._ThrottleQueueTaskDispatcher_HigherPriorityWaiting(catNm));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rank the ready builds of other tasks in a category. Among builds with the same priority, or the same estimate,
+     * the oldest ranks highest, so only the oldest of each group is ranked, with aging applied now. Without aging, the
+     * rank only depends on the group, so the first group with a build of another task is the best.
+     *
+     * @return the highest rank of the ready builds of other tasks, or {@link Double#NEGATIVE_INFINITY} if there are
+     *     none that can be ranked.
+     */
+    private static double bestOther(
+            @NonNull ThrottleJobProperty.ThrottleCategory category, @NonNull Queue.Task task, long now) {
+        Collection<NavigableSet<QueuedCategories.Tracked>> groups = SHORTEST_FIRST.equals(category.getAdmissionOrder())
+                ? QueuedCategories.readyByEstimate(category.getCategoryName()).values()
+                : QueuedCategories.readyByPriority(category.getCategoryName()).descendingMap().values();
+        double best = Double.NEGATIVE_INFINITY;
+        for (NavigableSet<QueuedCategories.Tracked> group : groups) {
+            for (QueuedCategories.Tracked tracked : group) {
+                if (!tracked.task().equals(task)) {
+                    best = Math.max(best, rank(category, tracked, now));
+                    break;
+                }
+            }
+            if (best != Double.NEGATIVE_INFINITY && category.getAgingMinutes() <= 0) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    private static double rank(
+            @NonNull ThrottleJobProperty.ThrottleCategory category,
+            @NonNull QueuedCategories.Tracked tracked,
+            long now) {
+        return rank(category, tracked.priority(), tracked.estimatedDuration(), tracked.inQueueSince(), now);
+    }
+
+    /**
+     * @return the rank of a waiting build, higher ranks going first, or {@link Double#NaN} if it cannot be ranked.
+     */
+    private static double rank(
+            @NonNull ThrottleJobProperty.ThrottleCategory category,
+            int priority,
+            long estimatedDuration,
+            long inQueueSince,
+            long now) {
+        int agingMinutes = category.getAgingMinutes();
+        double waited = agingMinutes > 0 ? (now - inQueueSince) / (agingMinutes * 60_000.0) : 0;
+        if (SHORTEST_FIRST.equals(category.getAdmissionOrder())) {
+            if (estimatedDuration <= 0) {
+                return Double.NaN;
+            }
+            double estimatedMinutes = estimatedDuration / 60_000.0;
+            if (agingMinutes <= 0) {
+                return -estimatedMinutes;
+            }
+            return (waited * DEFAULT_AGING_MINUTES + estimatedMinutes) / estimatedMinutes;
+        }
+        return priority + waited;
+    }
+
+    /**
+     * Get the priority of builds of a task.
+     *
+     * @param task the task.
+     * @return the priority from the task's {@link ThrottleJobProperty}, or from the innermost {@code throttle} step
+     *     around a {@code node} block, or 0.
+     */
+    static int priorityOf(@NonNull Queue.Task task) {
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (tjp != null) {
+            return tjp.getPriority();
+        }
+        if (task instanceof PlaceholderTask placeholderTask) {
+            try {
+                FlowNode throttle = ThrottleQueueTaskDispatcher.firstThrottleStartNode(placeholderTask.getNode());
+                if (throttle != null
+                        && ArgumentsAction.getArguments(throttle).get("priority") instanceof Number priority) {
+                    return priority.intValue();
+                }
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.FINE, "Could not look up the flow node of " + task, e);
+            }
+        }
+        return 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CategoryAdmissionOrder.class.getName());
+}
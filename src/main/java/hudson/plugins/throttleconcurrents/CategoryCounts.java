@@ -0,0 +1,431 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+
+/**
+ * The number of builds counting against each category, kept up to date as builds start and finish, so that checking a
+ * category and its ancestors does not scan executors or the jobs of every descendant.
+ *
+ * <p>Every level of the hierarchy has its own counts: a build in a category is added to the category and to each of
+ * its ancestors once, when it starts, and removed from the same levels when it finishes. A build is counted when it
+ * leaves the queue on its executor, which happens under the queue lock, until the executor releases it, as with a scan
+ * of the executors. The {@code throttle} blocks registered in a category are counted from the time they are
+ * registered until they are removed.
+ *
+ * <p>Paused blocks, see {@link PausedBlocks}, are counted separately, so that a category that does not count them can
+ * leave them out, along with the executors of their {@code node} steps. A build keeps the levels it was counted at
+ * until it finishes, even if the categories are reconfigured. The counts of builds are only kept in memory; Pipelines
+ * that resume after a restart are counted again once they get their executors back.
+ */
+final class CategoryCounts {
+
+    /** What a count is made of. */
+    private enum Kind {
+        /** Builds of jobs in the category. */
+        JOB,
+        /** Executors of {@code node} steps inside {@code throttle} blocks in the category. */
+        STEP,
+        /** Executors of {@code node} steps inside {@code throttle} blocks in the category that are not paused. */
+        ACTIVE_STEP,
+        /** {@code throttle} blocks registered in the category. */
+        BLOCK,
+        /** {@code throttle} blocks registered in the category that are not paused. */
+        ACTIVE_BLOCK
+    }
+
+    /**
+     * A count at one level of the hierarchy.
+     *
+     * @param nodeName the node name, or {@code null} for the count across all nodes.
+     */
+    private record Key(Kind kind, String category, @CheckForNull String nodeName) {}
+
+    /** Map from keys, to the number of builds or blocks counted under that key. */
+    private static final ConcurrentMap<Key, Integer> counts = new ConcurrentHashMap<>();
+
+    /** Map from executors, to the build they run. Only changed while holding the class lock, as are the maps below. */
+    private static final Map<Executor, Unit> running = new HashMap<>();
+
+    /** Map from {@link Run#getExternalizableId()}, to the start node IDs of registered blocks, to the blocks. */
+    private static final Map<String, Map<String, Block>> blocks = new HashMap<>();
+
+    private CategoryCounts() {}
+
+    /**
+     * @param categoryName the category name.
+     * @return the number of running builds of jobs in the category or its descendants, each build once.
+     */
+    static int jobBuilds(@NonNull String categoryName) {
+        return get(Kind.JOB, categoryName, null);
+    }
+
+    /**
+     * The count that the total limit of a category is checked against: the builds of its jobs, plus its
+     * {@code throttle} blocks if it counts blocks, or else the executors of the {@code node} steps inside them.
+     *
+     * @param category the category.
+     * @return the number of builds counting against the category across all nodes.
+     */
+    static int total(@NonNull ThrottleJobProperty.ThrottleCategory category) {
+        String categoryName = category.getCategoryName();
+        boolean active = category.isSuspendPausedBlocks();
+        return get(Kind.JOB, categoryName, null)
+                + (category.isCountThrottleBlocks()
+                        ? get(active ? Kind.ACTIVE_BLOCK : Kind.BLOCK, categoryName, null)
+                        : get(active ? Kind.ACTIVE_STEP : Kind.STEP, categoryName, null));
+    }
+
+    /**
+     * @param category the category.
+     * @return the number of builds of jobs and {@code throttle} blocks counting against the permits of the category.
+     */
+    static int permitsHeld(@NonNull ThrottleJobProperty.ThrottleCategory category) {
+        String categoryName = category.getCategoryName();
+        return get(Kind.JOB, categoryName, null)
+                + get(category.isSuspendPausedBlocks() ? Kind.ACTIVE_BLOCK : Kind.BLOCK, categoryName, null);
+    }
+
+    /**
+     * @param category the category.
+     * @param nodeName the node name, as returned by {@link hudson.model.Node#getNodeName()}.
+     * @return the number of builds of jobs and {@code node} steps counting against the category on the node.
+     */
+    static int onNode(@NonNull ThrottleJobProperty.ThrottleCategory category, @NonNull String nodeName) {
+        String categoryName = category.getCategoryName();
+        return get(Kind.JOB, categoryName, nodeName)
+                + get(category.isSuspendPausedBlocks() ? Kind.ACTIVE_STEP : Kind.STEP, categoryName, nodeName);
+    }
+
+    private static int get(@NonNull Kind kind, @NonNull String categoryName, @CheckForNull String nodeName) {
+        return counts.getOrDefault(new Key(kind, categoryName, nodeName), 0);
+    }
+
+    /**
+     * The categories a job's builds count in, matching {@link ThrottleJobProperty#getCategoryTasks(String)}: those of
+     * its {@link ThrottleJobProperty} if the task is throttled, and those it is in by name, folder or label.
+     *
+     * @param task a task.
+     * @return the category names, possibly empty.
+     */
+    @NonNull
+    static List<String> jobCategoriesOf(@NonNull Queue.Task task) {
+        List<String> matched = CategoryMembership.categoriesOf(task);
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        if (tjp == null || !ThrottleQueueTaskDispatcher.shouldBeThrottled(task, tjp) || tjp.getCategories() == null) {
+            return matched;
+        }
+        if (matched.isEmpty()) {
+            return tjp.getCategories();
+        }
+        Set<String> categories = new LinkedHashSet<>(tjp.getCategories());
+        categories.addAll(matched);
+        return new ArrayList<>(categories);
+    }
+
+    private static void add(@NonNull Set<Key> keys, int delta) {
+        for (Key key : keys) {
+            counts.merge(key, delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    /** Something counted: a build of a job, a {@code node} step, or a {@code throttle} block. */
+    private abstract static class Unit {
+        /** The keys the unit is currently counted under. */
+        private Set<Key> keys = Set.of();
+
+        /** @return the keys the unit should be counted under now. */
+        @NonNull
+        abstract Set<Key> computeKeys();
+
+        /** Count the unit under its current keys, in place of those it was counted under so far. */
+        void recount() {
+            Set<Key> updated = computeKeys();
+            if (!updated.equals(keys)) {
+                add(keys, -1);
+                add(updated, 1);
+                keys = updated;
+            }
+        }
+
+        void uncount() {
+            add(keys, -1);
+            keys = Set.of();
+        }
+    }
+
+    /** A build of a job in one or more categories. */
+    private static final class JobBuild extends Unit {
+        private final Set<Key> fixed = new HashSet<>();
+
+        JobBuild(@NonNull List<String> categories, @NonNull String nodeName) {
+            for (String categoryName : ThrottleJobProperty.fetchDescriptor().withAncestors(categories)) {
+                fixed.add(new Key(Kind.JOB, categoryName, null));
+                fixed.add(new Key(Kind.JOB, categoryName, nodeName));
+            }
+        }
+
+        @NonNull
+        @Override
+        Set<Key> computeKeys() {
+            return fixed;
+        }
+    }
+
+    /** A {@code node} step whose innermost enclosing {@code throttle} block is registered. */
+    private static final class Step extends Unit {
+        private final Block block;
+
+        private final String nodeName;
+
+        Step(@NonNull Block block, @NonNull String nodeName) {
+            this.block = block;
+            this.nodeName = nodeName;
+        }
+
+        @NonNull
+        @Override
+        Set<Key> computeKeys() {
+            Set<Key> keys = new HashSet<>();
+            for (String categoryName : block.levels) {
+                keys.add(new Key(Kind.STEP, categoryName, null));
+                keys.add(new Key(Kind.STEP, categoryName, nodeName));
+                if (!block.paused) {
+                    keys.add(new Key(Kind.ACTIVE_STEP, categoryName, null));
+                    keys.add(new Key(Kind.ACTIVE_STEP, categoryName, nodeName));
+                }
+            }
+            return keys;
+        }
+    }
+
+    /** A registered {@code throttle} block, counted along with the {@code node} steps directly inside it. */
+    private static final class Block extends Unit {
+        /** The categories the block is registered in. */
+        private final Set<String> categories = new TreeSet<>();
+
+        /** The categories the block is registered in and their ancestors, as of the last change. */
+        private List<String> levels = List.of();
+
+        private boolean paused;
+
+        private final Set<Step> steps = new HashSet<>();
+
+        @NonNull
+        @Override
+        Set<Key> computeKeys() {
+            Set<Key> keys = new HashSet<>();
+            for (String categoryName : levels) {
+                keys.add(new Key(Kind.BLOCK, categoryName, null));
+                if (!paused) {
+                    keys.add(new Key(Kind.ACTIVE_BLOCK, categoryName, null));
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        void recount() {
+            levels = ThrottleJobProperty.fetchDescriptor().withAncestors(categories);
+            super.recount();
+            for (Step step : steps) {
+                step.recount();
+            }
+        }
+    }
+
+    /**
+     * Record that a {@code throttle} block was registered in a category.
+     *
+     * @param runId the ID of the run.
+     * @param flowNodeId the ID of the start node of the block.
+     * @param categoryName the category name.
+     */
+    static synchronized void blockAdded(
+            @NonNull String runId, @NonNull String flowNodeId, @NonNull String categoryName) {
+        Block block = blocks.computeIfAbsent(runId, k -> new HashMap<>()).computeIfAbsent(flowNodeId, k -> new Block());
+        if (block.categories.add(categoryName)) {
+            block.recount();
+        }
+    }
+
+    /**
+     * Record that a {@code throttle} block was removed from a category.
+     *
+     * @param runId the ID of the run.
+     * @param flowNodeId the ID of the start node of the block.
+     * @param categoryName the category name.
+     */
+    static synchronized void blockRemoved(
+            @NonNull String runId, @NonNull String flowNodeId, @NonNull String categoryName) {
+        Map<String, Block> ofRun = blocks.get(runId);
+        Block block = ofRun != null ? ofRun.get(flowNodeId) : null;
+        if (block != null && block.categories.remove(categoryName)) {
+            block.recount();
+            if (block.categories.isEmpty()) {
+                ofRun.remove(flowNodeId);
+                if (ofRun.isEmpty()) {
+                    blocks.remove(runId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that all {@code throttle} blocks of a run were removed from a category.
+     *
+     * @param runId the ID of the run.
+     * @param categoryName the category name.
+     */
+    static synchronized void runRemoved(@NonNull String runId, @NonNull String categoryName) {
+        Map<String, Block> ofRun = blocks.get(runId);
+        if (ofRun != null) {
+            for (String flowNodeId : new ArrayList<>(ofRun.keySet())) {
+                blockRemoved(runId, flowNodeId, categoryName);
+            }
+        }
+    }
+
+    /**
+     * Record whether a {@code throttle} block counts, see {@link PausedBlocks#isPaused(FlowNode)}.
+     *
+     * @param runId the ID of the run.
+     * @param blockStart the start node of the block.
+     * @param paused whether the block is paused or still waiting to resume.
+     */
+    static synchronized void pausedChanged(@NonNull String runId, @NonNull FlowNode blockStart, boolean paused) {
+        Map<String, Block> ofRun = blocks.get(runId);
+        Block block = ofRun != null ? ofRun.get(blockStart.getId()) : null;
+        if (block != null && block.paused != paused) {
+            block.paused = paused;
+            block.recount();
+        }
+    }
+
+    private static void started(@NonNull Executor executor, @NonNull Queue.Task task) {
+        String nodeName = executor.getOwner().getName();
+        if (task instanceof PlaceholderTask placeholderTask) {
+            // Look up the block outside the lock, as it may have to load the flow graph.
+            if (!(placeholderTask.getOwnerExecutable() instanceof Run<?, ?> run)) {
+                return;
+            }
+            try (Timeout t = Timeout.limit(100, TimeUnit.MILLISECONDS)) {
+                FlowNode firstThrottle = ThrottleQueueTaskDispatcher.firstThrottleStartNode(placeholderTask.getNode());
+                if (firstThrottle != null) {
+                    stepStarted(executor, run.getExternalizableId(), firstThrottle.getId(), nodeName);
+                }
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.FINE, "Could not look up the flow node of " + task, e);
+            }
+        } else {
+            // Pipelines that resume after a restart leave the queue as a task of their own, owned by the job.
+            Queue.Task job = task instanceof Job<?, ?> ? task : task.getOwnerTask();
+            List<String> categories = jobCategoriesOf(job);
+            if (!categories.isEmpty()) {
+                count(executor, new JobBuild(categories, nodeName));
+            }
+        }
+    }
+
+    private static synchronized void stepStarted(
+            @NonNull Executor executor, @NonNull String runId, @NonNull String flowNodeId, @NonNull String nodeName) {
+        Map<String, Block> ofRun = blocks.get(runId);
+        Block block = ofRun != null ? ofRun.get(flowNodeId) : null;
+        if (block != null && !running.containsKey(executor)) {
+            Step step = new Step(block, nodeName);
+            block.steps.add(step);
+            count(executor, step);
+        }
+    }
+
+    private static synchronized void count(@NonNull Executor executor, @NonNull Unit unit) {
+        if (running.putIfAbsent(executor, unit) == null) {
+            unit.recount();
+        }
+    }
+
+    private static synchronized void completed(@NonNull Executor executor) {
+        Unit unit = running.remove(executor);
+        if (unit != null) {
+            unit.uncount();
+            if (unit instanceof Step step) {
+                step.block.steps.remove(step);
+            }
+        }
+    }
+
+    /**
+     * Count the {@code throttle} blocks that were registered before a restart, once the runs they belong to can be
+     * looked up. Blocks of runs that are no longer building are dropped from the registry on the way.
+     */
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void countRegisteredBlocks() {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (ThrottleJobProperty.ThrottleCategory category : descriptor.getActiveCategories()) {
+            String categoryName = category.getCategoryName();
+            for (Map.Entry<String, List<FlowNode>> entry :
+                    ThrottleJobProperty.getThrottledPipelineRunsForCategory(categoryName).entrySet()) {
+                for (FlowNode blockStart : entry.getValue()) {
+                    blockAdded(entry.getKey(), blockStart.getId(), categoryName);
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled()) {
+                return;
+            }
+            // Items leave the queue on the thread of the executor that runs them.
+            Executor executor = Executor.currentExecutor();
+            if (executor != null) {
+                started(executor, li.task);
+            }
+        }
+    }
+
+    /** Forgets builds whose executors released them, whether or not a run was ever created for them. */
+    @Extension
+    public static final class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            completed(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            completed(executor);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CategoryCounts.class.getName());
+}
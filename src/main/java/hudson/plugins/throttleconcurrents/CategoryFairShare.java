@@ -0,0 +1,80 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import java.util.Collection;
+
+/**
+ * Shares the capacity of categories with {@link ThrottleJobProperty.ThrottleCategory#isFairShare()} evenly among the
+ * jobs that have builds in the queue, instead of giving it to whichever item {@code Queue.maintain()} reaches first.
+ *
+ * <p>When a category has no more free capacity than other jobs have queued builds, a build is refused while another
+ * job with queued builds is running fewer builds in the category. Freed capacity therefore goes to the job with the
+ * fewest running builds, so a job with many queued builds cannot starve the others. When there is enough capacity for
+ * every waiting build, nothing is refused.
+ *
+ * <p>Running builds per job come from {@link CategoryOccupancy} and queued builds from the counts kept by
+ * {@link QueuedCategories}, so the check only looks at the jobs with builds waiting in the category, not at the queue.
+ * A queued build of another job only counts as waiting if it is {@linkplain QueuedCategories#countReady(String) ready}.
+ * One held back by other limits, or waiting for an offline label, could not use capacity left for it.
+ */
+final class CategoryFairShare {
+
+    private CategoryFairShare() {}
+
+    /**
+     * Check whether a build of the task would take more than its job's fair share of its categories.
+     *
+     * @param task the task.
+     * @param categories the category names.
+     * @return the cause of blockage, or {@code null} if the job is within its fair share.
+     */
+    @CheckForNull
+    static CauseOfBlockage check(@NonNull Queue.Task task, @NonNull Collection<String> categories) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        String jobName = null;
+        CategoryOccupancy occupancy = null;
+        for (String catNm : categories) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(catNm);
+            if (category == null || !category.isFairShare() || category.getMaxConcurrentTotal() <= 0) {
+                continue;
+            }
+            if (jobName == null) {
+                jobName = jobOf(task);
+                occupancy = CategoryOccupancy.get();
+            }
+            int free = category.getMaxConcurrentTotal() - occupancy.total(catNm);
+            if (free > QueuedCategories.count(catNm) - QueuedCategories.count(catNm, jobName)) {
+                continue;
+            }
+            int othersQueued = QueuedCategories.countReady(catNm) - QueuedCategories.countReady(catNm, jobName);
+            if (othersQueued == 0 || free > othersQueued) {
+                continue;
+            }
+            int running = occupancy.ofJob(catNm, jobName);
+            for (String other : QueuedCategories.jobsReady(catNm)) {
+                if (!other.equals(jobName) && occupancy.ofJob(catNm, other) < running) {
+                    return new ThrottleQueueTaskDispatcher.CategoryBlockage(
+                            Messages._ThrottleQueueTaskDispatcher_OverFairShare(running, catNm));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the name builds of a task are counted under, which is the full name of the job for builds, matrix
+     * configurations and {@code node} blocks of Pipelines alike.
+     *
+     * @param task the task.
+     * @return the job name.
+     */
+    @NonNull
+    static String jobOf(@NonNull Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        return owner instanceof Item item ? item.getFullName() : owner.getFullDisplayName();
+    }
+}
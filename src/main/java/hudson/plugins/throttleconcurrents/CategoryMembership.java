@@ -0,0 +1,213 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+
+/**
+ * The categories jobs are in through {@link ThrottleJobProperty.ThrottleCategory#matchesJob(Job)}, i.e. by full name,
+ * folder or label rather than by a {@link ThrottleJobProperty} listing them. Such jobs are throttled as if their
+ * property listed the matching categories on top of its own, or as if they had one if they do not. Jobs without a
+ * property of their own are also in the categories they inherit from a {@link ThrottleFolderProperty}.
+ *
+ * <p>Matches are computed once per job and cached. The jobs of each category, as needed by
+ * {@link ThrottleJobProperty#getCategoryTasks(String)}, are collected by scanning all jobs on first use, and are then
+ * kept up to date as jobs are created, configured or deleted. Renaming or moving items, deleting folders, and
+ * changing the categories or folder properties start over. Matrix configurations are left to their project, as with
+ * the job property.
+ */
+final class CategoryMembership {
+
+    private static final Object LOCK = new Object();
+
+    /** The categories the cache was computed for. Guarded by {@link #LOCK}. */
+    private static List<ThrottleJobProperty.ThrottleCategory> source;
+
+    /** Map from job full names, to the names of the categories matching that job. Guarded by {@link #LOCK}. */
+    private static final Map<String, List<String>> byJob = new HashMap<>();
+
+    /**
+     * Map from category names, to job full names, to the jobs matching that category, or {@code null} until all jobs
+     * have been scanned. Guarded by {@link #LOCK}.
+     */
+    private static Map<String, Map<String, Job<?, ?>>> byCategory;
+
+    private CategoryMembership() {}
+
+    /**
+     * @param task the task.
+     * @return the names of the categories the task is in by name, folder or label, possibly empty.
+     */
+    @NonNull
+    static List<String> categoriesOf(@NonNull Queue.Task task) {
+        if (!(task instanceof Job<?, ?> job) || task instanceof MatrixConfiguration) {
+            return Collections.emptyList();
+        }
+        List<ThrottleJobProperty.ThrottleCategory> categories =
+                ThrottleJobProperty.fetchDescriptor().getCategoriesMatchingJobs();
+        if (categories.isEmpty() && !ThrottleFolderProperty.isInUse()) {
+            return Collections.emptyList();
+        }
+        synchronized (LOCK) {
+            checkSource(categories);
+            List<String> matched = byJob.get(job.getFullName());
+            return matched != null ? matched : update(job, categories);
+        }
+    }
+
+    /**
+     * @param category the category name.
+     * @return the jobs in the category by name, folder or label.
+     */
+    @NonNull
+    static List<Queue.Task> tasksIn(@NonNull String category) {
+        List<ThrottleJobProperty.ThrottleCategory> categories =
+                ThrottleJobProperty.fetchDescriptor().getCategoriesMatchingJobs();
+        if (categories.isEmpty() && !ThrottleFolderProperty.isInUse()) {
+            return Collections.emptyList();
+        }
+        synchronized (LOCK) {
+            checkSource(categories);
+            if (byCategory == null) {
+                byCategory = new HashMap<>();
+                try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                    for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+                        if (job instanceof Queue.Task && !(job instanceof MatrixConfiguration)) {
+                            update(job, categories);
+                        }
+                    }
+                }
+            }
+            Map<String, Job<?, ?>> jobs = byCategory.get(category);
+            List<Queue.Task> tasks = new ArrayList<>();
+            if (jobs != null) {
+                for (Job<?, ?> job : jobs.values()) {
+                    tasks.add((Queue.Task) job);
+                }
+            }
+            return tasks;
+        }
+    }
+
+    private static void checkSource(@NonNull List<ThrottleJobProperty.ThrottleCategory> categories) {
+        if (source != categories) {
+            reset();
+            source = categories;
+        }
+    }
+
+    @NonNull
+    private static List<String> update(
+            @NonNull Job<?, ?> job, @NonNull Collection<ThrottleJobProperty.ThrottleCategory> categories) {
+        remove(job.getFullName());
+        Set<String> matched = new LinkedHashSet<>();
+        for (ThrottleJobProperty.ThrottleCategory category : categories) {
+            if (category.matchesJob(job)) {
+                matched.add(category.getCategoryName());
+            }
+        }
+        if (job.getProperty(ThrottleJobProperty.class) == null) {
+            ThrottleJobProperty inherited = ThrottleFolderProperty.inheritedBy(job);
+            if (inherited != null && "category".equals(inherited.getThrottleOption())) {
+                matched.addAll(inherited.getCategories());
+            }
+        }
+        List<String> result =
+                matched.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(matched));
+        byJob.put(job.getFullName(), result);
+        if (byCategory != null) {
+            for (String category : result) {
+                byCategory.computeIfAbsent(category, k -> new HashMap<>()).put(job.getFullName(), job);
+            }
+        }
+        return result;
+    }
+
+    private static void remove(@NonNull String fullName) {
+        List<String> matched = byJob.remove(fullName);
+        if (matched != null && byCategory != null) {
+            for (String category : matched) {
+                Map<String, Job<?, ?>> jobs = byCategory.get(category);
+                if (jobs != null) {
+                    jobs.remove(fullName);
+                }
+            }
+        }
+    }
+
+    private static void reset() {
+        byJob.clear();
+        byCategory = null;
+    }
+
+    /** Start over, e.g. because the settings jobs inherit from folders changed. */
+    static void invalidate() {
+        synchronized (LOCK) {
+            reset();
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            changed(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            changed(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            synchronized (LOCK) {
+                if (item instanceof Job) {
+                    remove(item.getFullName());
+                } else {
+                    reset();
+                }
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            synchronized (LOCK) {
+                reset();
+            }
+        }
+
+        private static void changed(Item item) {
+            if (!(item instanceof Job<?, ?> job)
+                    || !(item instanceof Queue.Task)
+                    || item instanceof MatrixConfiguration) {
+                return;
+            }
+            synchronized (LOCK) {
+                if (source == null) {
+                    return;
+                }
+                if (byCategory != null) {
+                    update(job, source);
+                } else {
+                    remove(job.getFullName());
+                }
+            }
+        }
+    }
+}
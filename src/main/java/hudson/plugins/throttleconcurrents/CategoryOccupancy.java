@@ -0,0 +1,139 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.queue.SubTask;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import jenkins.model.Jenkins;
+
+/**
+ * The number of running builds in each throttle category, taken from a single scan of all executors and reused until
+ * {@link ThrottleDecisionCache#globalStamp()} changes.
+ *
+ * <p>The dispatcher and {@link CategoryPermits} count each category precisely when they check its limits, and stay the
+ * authority on admission. This snapshot is for callers that need an overview of every category at once and only use
+ * it to choose between items, or to decide which item goes first: {@link ThrottleQueueSorter},
+ * {@link ThrottleLoadBalancer}, {@link CategoryReservations}, {@link CategoryFairShare},
+ * {@link CategoryAdmissionOrder} and {@link ThrottleCloudProvisioningListener}. The snapshot can be stale between an
+ * executor taking a build and the build starting, so a stale count may delay or reorder an item, but cannot let a
+ * category exceed its limits.
+ *
+ * <p>Counts are pre-aggregated up the category hierarchy: a build counts once in each of its categories and once in
+ * each of their ancestors, however many of its categories share an ancestor.
+ */
+final class CategoryOccupancy {
+
+    @CheckForNull
+    private static volatile CategoryOccupancy current;
+
+    private final ThrottleDecisionCache.Stamp stamp;
+
+    /** Map from category names, to the number of builds running in that category across all nodes. */
+    private final Map<String, Integer> totals = new HashMap<>();
+
+    /** Map from category names, to node names, to the number of builds running in that category on that node. */
+    private final Map<String, Map<String, Integer>> perNode = new HashMap<>();
+
+    /** Map from category names, to job names, to the number of builds of that job running in that category. */
+    private final Map<String, Map<String, Integer>> perJob = new HashMap<>();
+
+    private CategoryOccupancy(@NonNull ThrottleDecisionCache.Stamp stamp) {
+        this.stamp = stamp;
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            String nodeName = computer.getName();
+            for (Executor executor : computer.getAllExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable != null) {
+                    SubTask parent = executable.getParent();
+                    if (parent instanceof Queue.Task task) {
+                        String jobName = CategoryFairShare.jobOf(task);
+                        for (String category :
+                                descriptor.withAncestors(ThrottleQueueTaskDispatcher.categoriesOf(task))) {
+                            totals.merge(category, 1, Integer::sum);
+                            perNode.computeIfAbsent(category, k -> new HashMap<>()).merge(nodeName, 1, Integer::sum);
+                            perJob.computeIfAbsent(category, k -> new HashMap<>()).merge(jobName, 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the current occupancy, rescanning executors only if something changed since the last scan.
+     *
+     * @return the current occupancy.
+     */
+    @NonNull
+    static CategoryOccupancy get() {
+        ThrottleDecisionCache.Stamp stamp = ThrottleDecisionCache.globalStamp();
+        CategoryOccupancy occupancy = current;
+        if (occupancy == null || !occupancy.stamp.equals(stamp)) {
+            occupancy = new CategoryOccupancy(stamp);
+            current = occupancy;
+        }
+        return occupancy;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of builds running in the category across all nodes.
+     */
+    int total(@NonNull String category) {
+        return totals.getOrDefault(category, 0);
+    }
+
+    /**
+     * @param categories the category names.
+     * @param nodeName the node name, as returned by {@link hudson.model.Node#getNodeName()}.
+     * @return the number of builds running in the categories on the node, counted once per category.
+     */
+    int onNode(@NonNull Collection<String> categories, @NonNull String nodeName) {
+        int count = 0;
+        for (String category : categories) {
+            Map<String, Integer> counts = perNode.get(category);
+            if (counts != null) {
+                count += counts.getOrDefault(nodeName, 0);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param category the category name.
+     * @param jobName the job name, as returned by {@link CategoryFairShare#jobOf(Queue.Task)}.
+     * @return the number of builds of the job running in the category across all nodes.
+     */
+    int ofJob(@NonNull String category, @NonNull String jobName) {
+        Map<String, Integer> counts = perJob.get(category);
+        return counts != null ? counts.getOrDefault(jobName, 0) : 0;
+    }
+
+    /**
+     * Check whether none of the given categories, nor any of their ancestors, has reached its
+     * {@code maxConcurrentTotal}.
+     *
+     * @param categories the category names.
+     * @return {@code false} if at least one category is saturated.
+     */
+    boolean hasHeadroom(@NonNull Collection<String> categories) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (String categoryName : descriptor.withAncestors(categories)) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(categoryName);
+            // Categories counting throttle blocks are limited by registrations, which executors do not reflect.
+            if (category != null
+                    && !category.isCountThrottleBlocks()
+                    && category.getMaxConcurrentTotal() > 0
+                    && total(categoryName) >= category.getMaxConcurrentTotal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,347 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Hands out permits in throttle categories to {@code throttle} steps that wait for capacity before running their body,
+ * rather than leaving the wait to the {@code node} blocks inside them.
+ *
+ * <p>A permit is a registration in {@link ThrottleJobProperty.DescriptorImpl#addThrottledPipelineForCategory}. A
+ * category has room for another permit if the number of registered {@code throttle} blocks plus the number of running
+ * builds of jobs in the category is below its {@code maxConcurrentTotal}, and no build of a job in the category is
+ * pending launch, as with {@link ThrottleQueueTaskDispatcher}. Per-node limits cannot be checked before a node is
+ * chosen, so they are still enforced by {@link ThrottleQueueTaskDispatcher}. A permit also needs room in every ancestor
+ * of its categories, where the blocks of all descendants count.
+ *
+ * <p>A waiter gets all of its permits at once or none of them, so it never holds some categories while waiting for
+ * others. Nested {@code throttle} blocks can still wait on each other across runs, e.g. one run holding {@code a}
+ * while waiting for {@code b} inside it and another the other way round. When a waiter is queued, the runs waiting on
+ * each other are followed to find such cycles, which are reported to the waiters involved.
+ *
+ * <p>Waiters are served in arrival order per category: a waiter is skipped while an earlier waiter sharing one of its
+ * categories is still blocked, but waiters for unrelated categories are not held up. Waiters are only kept in memory;
+ * steps re-register after a restart through {@code StepExecution.onResume()}. Waiters whose run is no longer building
+ * are dropped the next time waiters are polled.
+ */
+public final class CategoryPermits {
+
+    /**
+     * Something waiting for permits in a set of categories.
+     */
+    public interface Waiter {
+        /**
+         * @return the categories to acquire a permit in.
+         */
+        @NonNull
+        List<String> getCategories();
+
+        /**
+         * Record the permits, typically by registering the {@code throttle} block. Called while holding the lock, so
+         * that concurrent acquisitions see the new registrations.
+         */
+        void register();
+
+        /**
+         * Called after {@link #register()}, without holding the lock, to let the waiter proceed.
+         */
+        void granted();
+
+        /**
+         * @return the {@link hudson.model.Run#getExternalizableId()} of the run the waiter belongs to, if any.
+         */
+        @CheckForNull
+        String getRunId();
+
+        /**
+         * Report that the waiter is part of a cycle of runs waiting on each other. Called without holding the lock.
+         *
+         * @param description a description of the cycle.
+         */
+        void deadlocked(@NonNull String description);
+    }
+
+    private static final Object LOCK = new Object();
+
+    /** Guarded by {@link #LOCK}. */
+    private static final List<Waiter> waiters = new ArrayList<>();
+
+    private CategoryPermits() {}
+
+    /**
+     * Acquire permits for the waiter now if all its categories have room and nobody is waiting ahead of it, otherwise
+     * queue it until they do.
+     *
+     * @param waiter the waiter.
+     * @return {@code true} if the permits were acquired immediately, in which case {@link Waiter#granted()} has been
+     *     called.
+     */
+    public static boolean acquire(@NonNull Waiter waiter) {
+        List<Edge> cycle;
+        List<Waiter> involved = new ArrayList<>();
+        PendingTasks pendingTasks = PendingTasks.snapshot();
+        synchronized (LOCK) {
+            if (!isWaitingFor(waiter.getCategories()) && hasRoom(waiter.getCategories(), pendingTasks)) {
+                waiter.register();
+                cycle = null;
+            } else {
+                waiters.add(waiter);
+                cycle = findCycle(waiter, pendingTasks);
+                if (cycle == null) {
+                    return false;
+                }
+                Set<String> runIds = new HashSet<>();
+                for (Edge edge : cycle) {
+                    runIds.add(edge.runId());
+                }
+                for (Waiter other : waiters) {
+                    if (runIds.contains(other.getRunId())) {
+                        involved.add(other);
+                    }
+                }
+            }
+        }
+        if (cycle != null) {
+            String description = "Possible deadlock between throttle blocks: " + StringUtils.join(cycle, ", ");
+            LOGGER.log(Level.WARNING, description);
+            for (Waiter other : involved) {
+                other.deadlocked(description);
+            }
+            return false;
+        }
+        waiter.granted();
+        return true;
+    }
+
+    /**
+     * Acquire permits for the waiter only if that is possible right away.
+     *
+     * @param waiter the waiter.
+     * @return {@code true} if the permits were acquired, in which case {@link Waiter#granted()} has been called.
+     */
+    public static boolean tryAcquire(@NonNull Waiter waiter) {
+        PendingTasks pendingTasks = PendingTasks.snapshot();
+        synchronized (LOCK) {
+            if (isWaitingFor(waiter.getCategories()) || !hasRoom(waiter.getCategories(), pendingTasks)) {
+                return false;
+            }
+            waiter.register();
+        }
+        waiter.granted();
+        return true;
+    }
+
+    /**
+     * Stop waiting, e.g. because the step was aborted.
+     *
+     * @param waiter the waiter.
+     * @return {@code true} if the waiter was still waiting.
+     */
+    public static boolean cancel(@NonNull Waiter waiter) {
+        synchronized (LOCK) {
+            return waiters.remove(waiter);
+        }
+    }
+
+    /**
+     * Check whether anything is waiting for a permit in a category.
+     *
+     * @param category the category name.
+     * @return {@code true} if at least one waiter needs the category.
+     */
+    static boolean isWaitingFor(@NonNull String category) {
+        synchronized (LOCK) {
+            for (Waiter waiter : waiters) {
+                if (waiter.getCategories().contains(category)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean isWaitingFor(@NonNull Collection<String> categories) {
+        for (String category : categories) {
+            if (isWaitingFor(category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether anything is waiting for a permit.
+     *
+     * @return {@code true} if at least one waiter is queued.
+     */
+    static boolean hasWaiters() {
+        synchronized (LOCK) {
+            return !waiters.isEmpty();
+        }
+    }
+
+    /**
+     * Grant permits to every waiter whose categories have room again. Waiters of runs that are no longer building,
+     * e.g. because they were killed without their step being stopped, are dropped.
+     */
+    static void poll() {
+        List<Waiter> granted = new ArrayList<>();
+        PendingTasks pendingTasks = PendingTasks.snapshot();
+        synchronized (LOCK) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            Set<String> blocked = new HashSet<>();
+            for (Waiter waiter : new ArrayList<>(waiters)) {
+                if (!isBuilding(waiter)) {
+                    LOGGER.log(Level.FINE, "Dropping {0}, its run is no longer building", waiter);
+                    waiters.remove(waiter);
+                    continue;
+                }
+                List<String> categories = waiter.getCategories();
+                if (categories.stream().noneMatch(blocked::contains) && hasRoom(categories, pendingTasks)) {
+                    waiters.remove(waiter);
+                    waiter.register();
+                    granted.add(waiter);
+                } else {
+                    blocked.addAll(categories);
+                }
+            }
+        }
+        for (Waiter waiter : granted) {
+            try {
+                waiter.granted();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to resume " + waiter, e);
+            }
+        }
+    }
+
+    /**
+     * @param waiter a waiter.
+     * @return {@code true} unless the run of the waiter is known and no longer building.
+     */
+    private static boolean isBuilding(@NonNull Waiter waiter) {
+        String runId = waiter.getRunId();
+        if (runId == null) {
+            return true;
+        }
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        return run != null && run.isBuilding();
+    }
+
+    /**
+     * Look for a cycle of runs, starting from the run of the given waiter, in which each run waits for a category
+     * held by the next one.
+     *
+     * @param waiter the waiter to start from.
+     * @param pendingTasks the pending tasks, so that categories with room are not followed.
+     * @return the edges of the cycle, or {@code null} if there is none.
+     */
+    @CheckForNull
+    private static List<Edge> findCycle(@NonNull Waiter waiter, @NonNull PendingTasks pendingTasks) {
+        String runId = waiter.getRunId();
+        if (runId == null) {
+            return null;
+        }
+        Map<String, List<Waiter>> waitersByRun = new HashMap<>();
+        for (Waiter w : waiters) {
+            if (w.getRunId() != null) {
+                waitersByRun.computeIfAbsent(w.getRunId(), k -> new ArrayList<>()).add(w);
+            }
+        }
+        return findCycle(runId, runId, waitersByRun, new ArrayList<>(), new HashSet<>(), pendingTasks);
+    }
+
+    /**
+     * Depth-first step of {@link #findCycle(Waiter, PendingTasks)}: follow the categories {@code runId} waits for to
+     * the runs holding them, until {@code target} is reached. {@code path} holds the edges so far and {@code visited}
+     * the runs already followed; {@code waitersByRun} groups the waiters by run, and {@code pendingTasks} is used to
+     * skip categories that have room.
+     */
+    @CheckForNull
+    private static List<Edge> findCycle(
+            String runId,
+            String target,
+            Map<String, List<Waiter>> waitersByRun,
+            List<Edge> path,
+            Set<String> visited,
+            PendingTasks pendingTasks) {
+        for (Waiter w : waitersByRun.getOrDefault(runId, Collections.emptyList())) {
+            for (String category : w.getCategories()) {
+                if (hasRoom(Collections.singleton(category), pendingTasks)) {
+                    continue;
+                }
+                // Other blocks of the same run may be parallel branches that will finish, so they are not followed.
+                for (String holder : ThrottleJobProperty.getThrottledPipelineRunsForCategory(category).keySet()) {
+                    if (holder.equals(runId)) {
+                        continue;
+                    }
+                    path.add(new Edge(runId, category, holder));
+                    if (holder.equals(target)) {
+                        return path;
+                    }
+                    if (visited.add(holder)
+                            && findCycle(holder, target, waitersByRun, path, visited, pendingTasks) != null) {
+                        return path;
+                    }
+                    path.remove(path.size() - 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasRoom(@NonNull Collection<String> categories, @NonNull PendingTasks pendingTasks) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (String categoryName : descriptor.withAncestors(categories)) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(categoryName);
+            if (category != null && category.getMaxConcurrentTotal() > 0) {
+                // A build handed to an executor is not running yet, so it is not counted below; wait until it is.
+                if (pendingTasks.containsCategory(categoryName)) {
+                    return false;
+                }
+                if (CategoryCounts.permitsHeld(category) >= category.getMaxConcurrentTotal()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Re-checks waiters once a pending build has started, since it no longer holds them back. */
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (hasWaiters()) {
+                QueueWakeUp.capacityReleased(ThrottleQueueTaskDispatcher.categoriesOf(li.task), null);
+            }
+        }
+    }
+
+    /** A run waiting for a category held by another run. */
+    private record Edge(String runId, String category, String holder) {
+        @Override
+        public String toString() {
+            return runId + " waits for '" + category + "' held by " + holder;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CategoryPermits.class.getName());
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.queue.CauseOfBlockage;
+import java.util.Collection;
+
+/**
+ * Enforces the guaranteed minimums of categories that share a parent category, treating the parent's
+ * {@code maxConcurrentTotal} as a pool.
+ *
+ * <p>A category can always grow up to its {@link ThrottleJobProperty.ThrottleCategory#getGuaranteedMinimum()}, within
+ * the limits of the pool. Beyond that it borrows: it may use the free capacity of the pool, up to its own
+ * {@code maxConcurrentTotal}, except for the unused guarantees of siblings that have builds in the queue that could
+ * start. A sibling without such builds lends its whole guarantee. Running builds are never stopped, so a guarantee is
+ * reclaimed as borrowed builds finish: while the owner has queued builds, freed capacity is held for it rather than
+ * lent again.
+ *
+ * <p>Occupancy comes from {@link CategoryOccupancy}, siblings from the index of the descriptor and queued builds from
+ * the counts kept by {@link QueuedCategories}, so the check does not scan executors, categories or the queue. A queued
+ * build only claims its guarantee if it is {@linkplain QueuedCategories#hasReady(String) ready}; one that is held back
+ * by other limits, or that waits for an offline label, would leave the reserved capacity idle.
+ */
+final class CategoryReservations {
+
+    private CategoryReservations() {}
+
+    /**
+     * Check whether a build in the given categories would use capacity reserved for other categories.
+     *
+     * @param categories the category names.
+     * @return the cause of blockage, or {@code null} if the build only uses its own guarantees or free capacity.
+     */
+    @CheckForNull
+    static CauseOfBlockage check(@NonNull Collection<String> categories) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        CategoryOccupancy occupancy = null;
+        for (String catNm : descriptor.withAncestors(categories)) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(catNm);
+            if (category == null || category.getParent() == null) {
+                continue;
+            }
+            ThrottleJobProperty.ThrottleCategory pool = descriptor.getCategoryByName(category.getParent());
+            if (pool == null || pool.getMaxConcurrentTotal() <= 0) {
+                continue;
+            }
+            if (occupancy == null) {
+                occupancy = CategoryOccupancy.get();
+            }
+            if (occupancy.total(catNm) < category.getGuaranteedMinimum()) {
+                continue;
+            }
+            int reserved = 0;
+            for (ThrottleJobProperty.ThrottleCategory sibling : descriptor.getChildren(pool.getCategoryName())) {
+                if (sibling != category
+                        && sibling.getGuaranteedMinimum() > 0
+                        && QueuedCategories.hasReady(sibling.getCategoryName())) {
+                    int unused = sibling.getGuaranteedMinimum() - occupancy.total(sibling.getCategoryName());
+                    reserved += Math.max(unused, 0);
+                }
+            }
+            if (reserved > 0 && occupancy.total(pool.getCategoryName()) + reserved >= pool.getMaxConcurrentTotal()) {
+                return new ThrottleQueueTaskDispatcher.CategoryBlockage(
+                        Messages._ThrottleQueueTaskDispatcher_ReservedCapacity(pool.getCategoryName()));
+            }
+        }
+        return null;
+    }
+}
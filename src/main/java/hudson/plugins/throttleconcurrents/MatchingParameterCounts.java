@@ -0,0 +1,203 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+
+/**
+ * The parameters of the running builds of each job compared by
+ * {@link ThrottleJobProperty#isLimitOneJobWithMatchingParams()}, kept up to date as builds start and complete, so that
+ * checking a queued build does not scan the {@link ParametersAction} of every executor.
+ *
+ * <p>A build is recorded with the parameters listed in {@link ThrottleJobProperty#getParamsToCompare()} when it
+ * starts, or with all its parameters if none are listed. As with a scan of the executors, a running build matches a
+ * queued one if it has all the parameters of the queued build, compared with {@link ParameterValue#equals(Object)}; it
+ * may have more. Builds of Pipelines that resume after a restart are recorded again when they resume; other builds do
+ * not survive a restart.
+ *
+ * <p>Builds throttled as part of a category are also counted per category and value of
+ * {@link ThrottleJobProperty.ThrottleCategory#getParamToCompare()}, across all jobs in the category and its
+ * descendants. A build keeps the keys it was counted under until it completes, even if the category is reconfigured.
+ */
+final class MatchingParameterCounts {
+
+    /** Map from {@link Run#getExternalizableId()} of running builds, to the keys they were counted under. */
+    private static final ConcurrentMap<String, Counted> runs = new ConcurrentHashMap<>();
+
+    /**
+     * Map from {@link CategoryFairShare#jobOf(Queue.Task)} to the compared parameters of the job's running builds, by
+     * {@link Run#getExternalizableId()}.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, List<ParameterValue>>> running =
+            new ConcurrentHashMap<>();
+
+    /** Map from category keys, to the number of running builds counted under that key. */
+    private static final ConcurrentMap<String, Integer> categoryCounts = new ConcurrentHashMap<>();
+
+    private MatchingParameterCounts() {}
+
+    /**
+     * @param task the task of a queued build.
+     * @param params the parameters of the queued build, filtered by {@link ThrottleJobProperty#getParamsToCompare()}.
+     * @return the number of running builds of the same job that have all those parameters.
+     */
+    static int count(@NonNull Queue.Task task, @NonNull List<ParameterValue> params) {
+        Map<String, List<ParameterValue>> builds = running.get(CategoryFairShare.jobOf(task));
+        if (builds == null) {
+            return 0;
+        }
+        int count = 0;
+        for (List<ParameterValue> runParams : builds.values()) {
+            if (runParams.containsAll(params)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param category the category name.
+     * @param value the value of the category's {@link ThrottleJobProperty.ThrottleCategory#getParamToCompare()}.
+     * @return the number of running builds in the category with that value.
+     */
+    static int countInCategory(@NonNull String category, @NonNull String value) {
+        return categoryCounts.getOrDefault(categoryKey(category, value), 0);
+    }
+
+    /**
+     * @param params the parameters of a build.
+     * @param name the parameter name.
+     * @return the value of the parameter as a string, or {@code null} if the build does not have it.
+     */
+    @CheckForNull
+    static String valueOf(@NonNull List<ParameterValue> params, @NonNull String name) {
+        for (ParameterValue param : params) {
+            if (name.equals(param.getName())) {
+                return Objects.toString(param.getValue());
+            }
+        }
+        return null;
+    }
+
+    private static void started(@NonNull Run<?, ?> run) {
+        if (!(run.getParent() instanceof Queue.Task task)) {
+            return;
+        }
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(task);
+        ParametersAction action = run.getAction(ParametersAction.class);
+        List<ParameterValue> params = action != null ? action.getParameters() : Collections.emptyList();
+        List<ParameterValue> compared = tjp != null && tjp.isLimitOneJobWithMatchingParams()
+                ? new ArrayList<>(ThrottleQueueTaskDispatcher.doFilterParams(tjp.getParamsToCompare(), params))
+                : null;
+        String job = compared != null ? CategoryFairShare.jobOf(task) : null;
+        List<String> categoryKeys = new ArrayList<>();
+        if (!params.isEmpty()) {
+            ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+            for (String categoryName : descriptor.withAncestors(ThrottleQueueTaskDispatcher.categoriesOf(task))) {
+                ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(categoryName);
+                if (category != null && category.getParamToCompare() != null) {
+                    String value = valueOf(params, category.getParamToCompare());
+                    if (value != null) {
+                        categoryKeys.add(categoryKey(categoryName, value));
+                    }
+                }
+            }
+        }
+        if (job == null && categoryKeys.isEmpty()) {
+            return;
+        }
+        String runId = run.getExternalizableId();
+        if (runs.putIfAbsent(runId, new Counted(job, categoryKeys)) == null) {
+            if (job != null) {
+                running.compute(job, (k, builds) -> {
+                    if (builds == null) {
+                        builds = new ConcurrentHashMap<>();
+                    }
+                    builds.put(runId, compared);
+                    return builds;
+                });
+            }
+            for (String categoryKey : categoryKeys) {
+                categoryCounts.merge(categoryKey, 1, Integer::sum);
+            }
+        }
+    }
+
+    private static void completed(@NonNull Run<?, ?> run) {
+        String runId = run.getExternalizableId();
+        Counted counted = runs.remove(runId);
+        if (counted != null) {
+            if (counted.job() != null) {
+                running.computeIfPresent(counted.job(), (k, builds) -> {
+                    builds.remove(runId);
+                    return builds.isEmpty() ? null : builds;
+                });
+            }
+            for (String categoryKey : counted.categoryKeys()) {
+                categoryCounts.computeIfPresent(categoryKey, (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    @NonNull
+    private static String categoryKey(@NonNull String category, @NonNull String value) {
+        return category + '\n' + value;
+    }
+
+    /** The job and category keys a running build was counted under. */
+    private record Counted(@CheckForNull String job, @NonNull List<String> categoryKeys) {}
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            started(run);
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
+            completed(run);
+        }
+    }
+
+    @Extension
+    public static final class FlowExecutionListenerImpl extends FlowExecutionListener {
+        @Override
+        public void onResumed(@NonNull FlowExecution execution) {
+            Run<?, ?> run = runOf(execution);
+            if (run != null) {
+                started(run);
+            }
+        }
+
+        @CheckForNull
+        private static Run<?, ?> runOf(@NonNull FlowExecution execution) {
+            try {
+                return execution.getOwner().getExecutable() instanceof Run<?, ?> run ? run : null;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not look up the run of " + execution, e);
+                return null;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MatchingParameterCounts.class.getName());
+}
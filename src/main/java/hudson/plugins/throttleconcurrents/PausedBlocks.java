@@ -0,0 +1,294 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.StepNode;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+
+/**
+ * Tracks {@code throttle} blocks that are only waiting on {@code input}, {@code sleep} or {@code waitUntil}, for
+ * categories that do not count such blocks against their limits, or whose parent categories do not.
+ *
+ * <p>A block is paused if every current head of its execution inside the block is one of those steps, or nested in
+ * one. This is worked out from the flow graph whenever a new head appears in the run, and passed on to
+ * {@link CategoryCounts}, so that the dispatcher only has to look up the counts. A block that resumes does not count
+ * again right away: it first acquires its categories through {@link CategoryPermits}, and until then the {@code node}
+ * steps it asks for stay in the queue. Work that held an executor through the pause, such as a {@code sleep} inside
+ * {@code node}, carries on regardless.
+ *
+ * <p>The state is only kept in memory. After a restart, paused blocks count until they next pause.
+ */
+final class PausedBlocks {
+
+    /** Function names of steps that wait without doing any work. */
+    private static final Set<String> PAUSE_STEPS = Set.of("input", "sleep", "waitUntil");
+
+    /** Map from the start nodes of paused blocks, to the {@link Run#getExternalizableId()} of their runs. */
+    private static final ConcurrentMap<FlowNode, String> paused = new ConcurrentHashMap<>();
+
+    /** Map from the start nodes of resumed blocks that are waiting for permits, to their waiters. */
+    private static final ConcurrentMap<FlowNode, Resumption> resuming = new ConcurrentHashMap<>();
+
+    private PausedBlocks() {}
+
+    /**
+     * @param blockStart the start node of a {@code throttle} block.
+     * @return {@code true} if the block does not count, because it is paused or still waiting to resume.
+     */
+    static boolean isPaused(@NonNull FlowNode blockStart) {
+        return paused.containsKey(blockStart) || resuming.containsKey(blockStart);
+    }
+
+    /**
+     * @param task a queued task.
+     * @return {@code true} if the task is a {@code node} step inside a block that resumed but has no permits yet.
+     */
+    static boolean isResuming(@NonNull Queue.Task task) {
+        if (resuming.isEmpty() || !(task instanceof PlaceholderTask placeholderTask)) {
+            return false;
+        }
+        try (Timeout t = Timeout.limit(100, TimeUnit.MILLISECONDS)) {
+            FlowNode node = placeholderTask.getNode();
+            if (node != null) {
+                for (BlockStartNode enclosing : node.getEnclosingBlocks()) {
+                    if (resuming.containsKey(enclosing)) {
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.FINE, "Could not look up the flow node of " + task, e);
+        }
+        return false;
+    }
+
+    /**
+     * Scan the current heads of the execution.
+     *
+     * @param blockStart the start node of a {@code throttle} block.
+     * @return {@code true} if all work inside the block is waiting on a pause step.
+     */
+    private static boolean isPausedNow(@NonNull FlowNode blockStart) {
+        FlowExecution execution = blockStart.getExecution();
+        boolean inBlock = false;
+        for (FlowNode head : execution.getCurrentHeads()) {
+            boolean pausedHead = isPause(head);
+            boolean enclosed = false;
+            for (BlockStartNode enclosing : head.getEnclosingBlocks()) {
+                if (enclosing.getId().equals(blockStart.getId())) {
+                    enclosed = true;
+                    break;
+                }
+                pausedHead |= isPause(enclosing);
+            }
+            if (enclosed) {
+                if (!pausedHead) {
+                    return false;
+                }
+                inBlock = true;
+            }
+        }
+        return inBlock;
+    }
+
+    private static boolean isPause(@NonNull FlowNode node) {
+        if (node instanceof StepNode stepNode) {
+            StepDescriptor descriptor = stepNode.getDescriptor();
+            return descriptor != null && PAUSE_STEPS.contains(descriptor.getFunctionName());
+        }
+        return false;
+    }
+
+    private static void forget(@NonNull FlowNode blockStart) {
+        String runId = paused.remove(blockStart);
+        Resumption resumption = resuming.remove(blockStart);
+        if (resumption != null) {
+            CategoryPermits.cancel(resumption);
+            runId = resumption.getRunId();
+        }
+        if (runId != null) {
+            recount(runId, blockStart);
+        }
+    }
+
+    /** Let {@link CategoryCounts} know whether the block counts, after it paused, resumed or was forgotten. */
+    private static void recount(@NonNull String runId, @NonNull FlowNode blockStart) {
+        CategoryCounts.pausedChanged(runId, blockStart, isPaused(blockStart));
+    }
+
+    /**
+     * Re-evaluates the enclosing blocks whenever a run in a category that does not count paused blocks moves on. A
+     * block that starts pausing frees capacity, so the queue and waiting {@code throttle} steps are woken up; a block
+     * that stops pausing queues up for permits.
+     */
+    @Extension
+    public static final class GraphListenerImpl implements GraphListener {
+        @Override
+        public void onNewHead(FlowNode node) {
+            if (node instanceof BlockEndNode<?> end) {
+                forget(end.getStartNode());
+            }
+            ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+            if (descriptor.getCategories().stream()
+                    .noneMatch(ThrottleJobProperty.ThrottleCategory::isSuspendPausedBlocks)) {
+                return;
+            }
+            try {
+                Queue.Executable executable = node.getExecution().getOwner().getExecutable();
+                if (!(executable instanceof Run<?, ?> run)) {
+                    return;
+                }
+                Map<String, List<String>> categoriesByFlowNode = ThrottleJobProperty.getCategoriesForRunByFlowNode(run);
+                if (categoriesByFlowNode.isEmpty()) {
+                    return;
+                }
+                Set<String> released = new TreeSet<>();
+                for (BlockStartNode enclosing : node.getEnclosingBlocks()) {
+                    List<String> categories = categoriesByFlowNode.get(enclosing.getId());
+                    if (categories == null) {
+                        continue;
+                    }
+                    // A parent category that does not count paused blocks also drops those of its children.
+                    List<String> suspending = new ArrayList<>(descriptor.withAncestors(categories));
+                    suspending.removeIf(c -> !suspendsPausedBlocks(c));
+                    if (suspending.isEmpty()) {
+                        continue;
+                    }
+                    if (isPausedNow(enclosing)) {
+                        if (paused.put(enclosing, run.getExternalizableId()) == null) {
+                            recount(run.getExternalizableId(), enclosing);
+                            Resumption resumption = resuming.remove(enclosing);
+                            if (resumption != null) {
+                                CategoryPermits.cancel(resumption);
+                            } else {
+                                released.addAll(suspending);
+                            }
+                            suspending.forEach(ThrottleDecisionCache::categoryChanged);
+                        }
+                    } else if (paused.remove(enclosing) != null) {
+                        Resumption resumption = new Resumption(enclosing, suspending, run.getExternalizableId());
+                        resuming.put(enclosing, resumption);
+                        suspending.forEach(ThrottleDecisionCache::categoryChanged);
+                        CategoryPermits.acquire(resumption);
+                    }
+                }
+                if (!released.isEmpty()) {
+                    QueueWakeUp.capacityReleased(released, null);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not look up the run of " + node, e);
+            }
+        }
+    }
+
+    /** Forgets the blocks of a run that has completed, e.g. after a hard kill that did not close them. */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
+            if (paused.isEmpty() && resuming.isEmpty()) {
+                return;
+            }
+            String runId = run.getExternalizableId();
+            for (FlowNode blockStart : new ArrayList<>(paused.keySet())) {
+                if (paused.remove(blockStart, runId)) {
+                    recount(runId, blockStart);
+                }
+            }
+            for (Resumption resumption : resuming.values()) {
+                if (runId.equals(resumption.getRunId())) {
+                    forget(resumption.blockStart);
+                }
+            }
+        }
+    }
+
+    /** Waits for permits on behalf of a block that resumed, so that it counts again only once there is room. */
+    private static final class Resumption implements CategoryPermits.Waiter {
+        private final FlowNode blockStart;
+
+        private final List<String> categories;
+
+        private final String runId;
+
+        Resumption(@NonNull FlowNode blockStart, @NonNull List<String> categories, @NonNull String runId) {
+            this.blockStart = blockStart;
+            this.categories = categories;
+            this.runId = runId;
+        }
+
+        @NonNull
+        @Override
+        public List<String> getCategories() {
+            return categories;
+        }
+
+        @Override
+        public void register() {
+            if (resuming.remove(blockStart, this)) {
+                recount(runId, blockStart);
+            }
+            categories.forEach(ThrottleDecisionCache::categoryChanged);
+        }
+
+        @Override
+        public void granted() {
+            // The node steps of the block were held back while it waited.
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins != null) {
+                jenkins.getQueue().scheduleMaintenance();
+            }
+        }
+
+        @NonNull
+        @Override
+        public String getRunId() {
+            return runId;
+        }
+
+        @Override
+        public void deadlocked(@NonNull String description) {
+            // Already logged by CategoryPermits; the block has no step context to print to.
+        }
+
+        @Override
+        public String toString() {
+            return "Resumption[" + runId + " #" + blockStart.getId() + "]";
+        }
+    }
+
+    /**
+     * @param categoryName the category name.
+     * @return whether the category does not count paused blocks.
+     */
+    static boolean suspendsPausedBlocks(@NonNull String categoryName) {
+        ThrottleJobProperty.ThrottleCategory category =
+                ThrottleJobProperty.fetchDescriptor().getCategoryByName(categoryName);
+        return category != null && category.isSuspendPausedBlocks();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PausedBlocks.class.getName());
+}
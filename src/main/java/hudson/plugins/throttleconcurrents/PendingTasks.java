@@ -0,0 +1,127 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.model.queue.WorkUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jenkins.model.Jenkins;
+
+/**
+ * A snapshot of {@link Queue#getPendingItems()} used while evaluating a single throttle decision.
+ *
+ * <p>{@link Queue#isPending(Task)} is a linear scan of the pending list. Taking the snapshot once and answering
+ * membership of tasks, and of the categories they count in, from hash sets makes each check O(1) after a single pass
+ * over the pending items.
+ *
+ * <p>The snapshot is deliberately not shared across decisions: items become pending during {@code Queue.maintain()}
+ * as they are handed to executors, and a stale snapshot would let two builds of a saturated category through in the
+ * same maintenance pass.
+ */
+final class PendingTasks {
+
+    private final List<Queue.BuildableItem> items;
+
+    private final Set<Task> tasks;
+
+    /** Categories of pending tasks and their ancestors, computed on first use. */
+    @CheckForNull
+    private Set<String> categories;
+
+    /** Whether any pending task is throttled, computed on first use. */
+    @CheckForNull
+    private Boolean throttled;
+
+    private PendingTasks(@NonNull List<Queue.BuildableItem> items) {
+        this.items = items;
+        this.tasks = new HashSet<>();
+        for (Queue.BuildableItem item : items) {
+            tasks.add(item.task);
+        }
+    }
+
+    @NonNull
+    static PendingTasks snapshot() {
+        return new PendingTasks(Jenkins.get().getQueue().getPendingItems());
+    }
+
+    /**
+     * Equivalent of {@link Queue#isPending(Task)} against this snapshot.
+     *
+     * @param task the task to look for.
+     * @return {@code true} if a build of the task has been handed to an executor but has not started yet.
+     */
+    boolean contains(@NonNull Task task) {
+        return tasks.contains(task);
+    }
+
+    /**
+     * Check whether any pending task is in a category, directly or through one of its child categories.
+     *
+     * @param category the category name.
+     * @return {@code true} if a build counting against the category is pending launch.
+     */
+    boolean containsCategory(@NonNull String category) {
+        if (items.isEmpty()) {
+            return false;
+        }
+        if (categories == null) {
+            ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+            Set<String> pendingCategories = new HashSet<>();
+            for (Queue.BuildableItem item : items) {
+                pendingCategories.addAll(descriptor.withAncestors(ThrottleQueueTaskDispatcher.categoriesOf(item.task)));
+                // Jobs that list a category without being throttled by it still count in it, see CategoryCounts.
+                pendingCategories.addAll(descriptor.withAncestors(CategoryCounts.jobCategoriesOf(item.task)));
+            }
+            categories = pendingCategories;
+        }
+        return categories.contains(category);
+    }
+
+    /**
+     * Check whether a pending task that is throttled, through a {@link ThrottleJobProperty} or in any category, has
+     * been handed to an executor of the given node. Only the executors of that node are looked at, and only if the
+     * snapshot has a throttled task at all.
+     *
+     * @param node the node.
+     * @return {@code true} if a throttled build is pending launch on the node.
+     */
+    boolean containsThrottledOn(@NonNull Node node) {
+        if (items.isEmpty()) {
+            return false;
+        }
+        if (throttled == null) {
+            boolean found = false;
+            for (Queue.BuildableItem item : items) {
+                if (ThrottledBuildsPerNode.isThrottled(item.task)) {
+                    found = true;
+                    break;
+                }
+            }
+            throttled = found;
+        }
+        if (!throttled) {
+            return false;
+        }
+        Computer computer = node.toComputer();
+        if (computer == null) {
+            return false;
+        }
+        for (Executor executor : computer.getExecutors()) {
+            WorkUnit workUnit = executor.getCurrentWorkUnit();
+            if (workUnit != null
+                    && executor.getCurrentExecutable() == null
+                    && tasks.contains(workUnit.context.task)
+                    && ThrottledBuildsPerNode.isThrottled(workUnit.context.task)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
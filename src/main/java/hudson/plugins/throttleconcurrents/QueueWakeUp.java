@@ -0,0 +1,106 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.model.Run;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Schedules queue maintenance as soon as throttle capacity is released in a category that has blocked items, instead
+ * of leaving them to the next periodic {@code Queue.maintain()}. The same wake-up hands out permits to {@code throttle}
+ * steps waiting in {@link CategoryPermits}.
+ *
+ * <p>Wake-ups are coalesced: a burst of releases within {@link #DELAY_MILLIS} results in a single call to
+ * {@code Queue.scheduleMaintenance()}. When the release comes from a finishing {@link Run}, the wake-up waits until
+ * the run has let go of its executor, since the dispatcher would otherwise still count it.
+ */
+public final class QueueWakeUp {
+
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "deliberately mutable")
+    public static long DELAY_MILLIS = Long.getLong(QueueWakeUp.class.getName() + ".DELAY_MILLIS", 100L);
+
+    /** How long to wait for a finished run to release its executor before waking the queue anyway. */
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Whether capacity was released by something that does not hold an executor, like a {@code throttle} block. */
+    private static final AtomicBoolean released = new AtomicBoolean();
+
+    /** Map from finished runs still holding an executor, to the time after which we stop waiting for them. */
+    private static final ConcurrentMap<Run<?, ?>, Long> finishingRuns = new ConcurrentHashMap<>();
+
+    private QueueWakeUp() {}
+
+    /**
+     * Record that capacity was released in some categories.
+     *
+     * @param categories the categories the capacity was released in.
+     * @param run the finished run that held the capacity, or {@code null} if nothing is left to wait for.
+     */
+    public static void capacityReleased(@NonNull Collection<String> categories, @CheckForNull Run<?, ?> run) {
+        if (!hasWaiters(categories)) {
+            return;
+        }
+        if (run != null) {
+            finishingRuns.putIfAbsent(run, System.nanoTime() + MAX_WAIT_NANOS);
+        } else {
+            released.set(true);
+        }
+        schedule();
+    }
+
+    private static boolean hasWaiters(@NonNull Collection<String> categories) {
+        // Items may be blocked on an ancestor, which gains room along with the category. Cached decisions are cleared
+        // on every configuration change, so queued items are looked up as well.
+        for (String category : ThrottleJobProperty.fetchDescriptor().withAncestors(categories)) {
+            if (ThrottleDecisionCache.hasBlocked(category)
+                    || QueuedCategories.count(category) > 0
+                    || CategoryPermits.isWaitingFor(category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(QueueWakeUp::wakeUp, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void wakeUp() {
+        scheduled.set(false);
+        boolean wakeUp = released.getAndSet(false);
+        long now = System.nanoTime();
+        for (Map.Entry<Run<?, ?>, Long> entry : finishingRuns.entrySet()) {
+            if (entry.getKey().getExecutor() == null || now - entry.getValue() > 0) {
+                finishingRuns.remove(entry.getKey());
+                wakeUp = true;
+            }
+        }
+        if (wakeUp) {
+            CategoryPermits.poll();
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins != null) {
+                LOGGER.log(Level.FINE, "Throttle capacity released, scheduling queue maintenance");
+                jenkins.getQueue().scheduleMaintenance();
+            }
+        }
+        if (!finishingRuns.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(QueueWakeUp.class.getName());
+}
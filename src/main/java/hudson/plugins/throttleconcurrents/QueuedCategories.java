@@ -0,0 +1,348 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.CompositeCauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The queue items in each throttle category, and their number per job, kept up to date by a {@link QueueListener} so
+ * that they can be read without scanning the queue.
+ *
+ * <p>An item counts in its categories and their ancestors, as they were when the item entered the queue, until it
+ * leaves the queue. Items are picked up in whichever state they are first seen in, so that items restored from disk
+ * are counted as well.
+ *
+ * <p>The items that are {@linkplain #isReady(Queue.Item) ready} are counted separately, per category and per job, and
+ * grouped by priority and by estimated duration, oldest first, so that {@link CategoryAdmissionOrder} only has to rank
+ * the oldest item of each group. Whether an item is ready is decided when it becomes blocked or buildable, and again
+ * whenever this plugin keeps it blocked, so that checks can read the counts instead of looking up every item in the
+ * queue.
+ */
+final class QueuedCategories {
+
+    /** Map from queue item IDs, to what the item was counted in. */
+    private static final ConcurrentMap<Long, Tracked> items = new ConcurrentHashMap<>();
+
+    /** Map from category names, to queue item IDs, to the queue items in that category. */
+    private static final ConcurrentMap<String, ConcurrentMap<Long, Tracked>> byCategory = new ConcurrentHashMap<>();
+
+    /** Map from category names, to job names, to the number of queue items of that job in that category. */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Integer>> jobCounts = new ConcurrentHashMap<>();
+
+    /** IDs of the queue items that are ready. */
+    private static final Set<Long> ready = ConcurrentHashMap.newKeySet();
+
+    /** Map from category names, to the number of ready queue items in that category. */
+    private static final ConcurrentMap<String, Integer> readyCounts = new ConcurrentHashMap<>();
+
+    /** Map from category names, to job names, to the number of ready queue items of that job in that category. */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Integer>> readyJobCounts =
+            new ConcurrentHashMap<>();
+
+    /** Map from category names, to priorities, to the ready queue items with that priority in that category. */
+    private static final ConcurrentMap<String, ConcurrentNavigableMap<Integer, NavigableSet<Tracked>>> readyByPriority =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Map from category names, to estimated durations, to the ready queue items with that estimate in that category.
+     * Items without an estimate are left out.
+     */
+    private static final ConcurrentMap<String, ConcurrentNavigableMap<Long, NavigableSet<Tracked>>> readyByEstimate =
+            new ConcurrentHashMap<>();
+
+    /** Map from tasks, to their queue items. */
+    private static final ConcurrentMap<Queue.Task, NavigableSet<Tracked>> byTask = new ConcurrentHashMap<>();
+
+    private static final Comparator<Tracked> OLDEST_FIRST =
+            Comparator.comparingLong(Tracked::inQueueSince).thenComparingLong(Tracked::id);
+
+    private QueuedCategories() {}
+
+    /**
+     * @param category the category name.
+     * @return the number of queue items in the category or in one of its descendants.
+     */
+    static int count(@NonNull String category) {
+        Map<Long, Tracked> forCategory = byCategory.get(category);
+        return forCategory != null ? forCategory.size() : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the queue items in the category or in one of its descendants.
+     */
+    @NonNull
+    static Collection<Tracked> itemsIn(@NonNull String category) {
+        Map<Long, Tracked> forCategory = byCategory.get(category);
+        return forCategory != null ? forCategory.values() : Collections.emptyList();
+    }
+
+    /**
+     * @param category the category name.
+     * @param jobName the job name, as returned by {@link CategoryFairShare#jobOf(Queue.Task)}.
+     * @return the number of queue items of the job in the category or in one of its descendants.
+     */
+    static int count(@NonNull String category, @NonNull String jobName) {
+        Map<String, Integer> forCategory = jobCounts.get(category);
+        return forCategory != null ? forCategory.getOrDefault(jobName, 0) : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the number of ready queue items in the category or in one of its descendants.
+     */
+    static int countReady(@NonNull String category) {
+        return readyCounts.getOrDefault(category, 0);
+    }
+
+    /**
+     * @param category the category name.
+     * @param jobName the job name, as returned by {@link CategoryFairShare#jobOf(Queue.Task)}.
+     * @return the number of ready queue items of the job in the category or in one of its descendants.
+     */
+    static int countReady(@NonNull String category, @NonNull String jobName) {
+        Map<String, Integer> forCategory = readyJobCounts.get(category);
+        return forCategory != null ? forCategory.getOrDefault(jobName, 0) : 0;
+    }
+
+    /**
+     * @param category the category name.
+     * @return the names of the jobs with ready queue items in the category or in one of its descendants.
+     */
+    @NonNull
+    static Set<String> jobsReady(@NonNull String category) {
+        Map<String, Integer> forCategory = readyJobCounts.get(category);
+        return forCategory != null ? Collections.unmodifiableSet(forCategory.keySet()) : Collections.emptySet();
+    }
+
+    /**
+     * @param category the category name.
+     * @return the ready queue items in the category or in one of its descendants, by ascending priority, oldest first.
+     */
+    @NonNull
+    static NavigableMap<Integer, NavigableSet<Tracked>> readyByPriority(@NonNull String category) {
+        NavigableMap<Integer, NavigableSet<Tracked>> forCategory = readyByPriority.get(category);
+        return forCategory != null
+                ? Collections.unmodifiableNavigableMap(forCategory)
+                : Collections.emptyNavigableMap();
+    }
+
+    /**
+     * @param category the category name.
+     * @return the ready queue items with an estimated duration in the category or in one of its descendants, by
+     *     ascending estimate, oldest first.
+     */
+    @NonNull
+    static NavigableMap<Long, NavigableSet<Tracked>> readyByEstimate(@NonNull String category) {
+        NavigableMap<Long, NavigableSet<Tracked>> forCategory = readyByEstimate.get(category);
+        return forCategory != null
+                ? Collections.unmodifiableNavigableMap(forCategory)
+                : Collections.emptyNavigableMap();
+    }
+
+    /**
+     * @param task a task.
+     * @return the queue items of the task, oldest first.
+     */
+    @NonNull
+    static Collection<Tracked> itemsOf(@NonNull Queue.Task task) {
+        NavigableSet<Tracked> forTask = byTask.get(task);
+        return forTask != null ? Collections.unmodifiableNavigableSet(forTask) : Collections.emptySortedSet();
+    }
+
+    /**
+     * @param tracked a queue item.
+     * @return whether the item is ready.
+     */
+    static boolean isReady(@NonNull Tracked tracked) {
+        return ready.contains(tracked.id());
+    }
+
+    /**
+     * @param category the category name.
+     * @return whether at least one queue item in the category or in one of its descendants is ready.
+     */
+    static boolean hasReady(@NonNull String category) {
+        return countReady(category) > 0;
+    }
+
+    /**
+     * Check whether a queue item is only waiting on the capacity of its categories, or on the order in which they admit
+     * builds. Items held back by anything else, like a quiet period, an offline label or other limits, could not use
+     * capacity left for them, so they should not hold back other items.
+     *
+     * @param item a queue item that just became blocked or buildable.
+     * @return {@code true} if the item could start as soon as its categories let it.
+     */
+    private static boolean isReady(@NonNull Queue.Item item) {
+        if (item instanceof Queue.BlockedItem) {
+            return item.getCauseOfBlockage() instanceof ThrottleQueueTaskDispatcher.CategoryBlockage;
+        }
+        if (item instanceof Queue.BuildableItem) {
+            // Admitted, so only waiting for an executor, unless no node can take it.
+            CauseOfBlockage cause = item.getCauseOfBlockage();
+            return !(cause instanceof CauseOfBlockage.BecauseLabelIsOffline
+                    || cause instanceof CauseOfBlockage.BecauseNodeIsOffline
+                    || cause instanceof CompositeCauseOfBlockage);
+        }
+        return false;
+    }
+
+    /**
+     * Record why this plugin keeps a blocked item blocked, since the queue does not report changes of the cause.
+     *
+     * @param item a blocked queue item.
+     * @param cause the cause of blockage returned for it.
+     */
+    static void stillBlocked(@NonNull Queue.BlockedItem item, @NonNull CauseOfBlockage cause) {
+        setReady(item.getId(), cause instanceof ThrottleQueueTaskDispatcher.CategoryBlockage);
+    }
+
+    private static synchronized void setReady(long id, boolean isReady) {
+        Tracked tracked = items.get(id);
+        if (tracked == null || (isReady ? !ready.add(id) : !ready.remove(id))) {
+            return;
+        }
+        int delta = isReady ? 1 : -1;
+        for (String category : tracked.categories()) {
+            readyCounts.merge(category, delta, QueuedCategories::sumOrDrop);
+            readyJobCounts
+                    .computeIfAbsent(category, k -> new ConcurrentHashMap<>())
+                    .merge(tracked.jobName(), delta, QueuedCategories::sumOrDrop);
+            group(readyByPriority, category, tracked.priority(), tracked, isReady);
+            if (tracked.estimatedDuration() > 0) {
+                group(readyByEstimate, category, tracked.estimatedDuration(), tracked, isReady);
+            }
+        }
+    }
+
+    private static <K> void group(
+            @NonNull ConcurrentMap<String, ConcurrentNavigableMap<K, NavigableSet<Tracked>>> groups,
+            @NonNull String category,
+            @NonNull K key,
+            @NonNull Tracked tracked,
+            boolean add) {
+        ConcurrentNavigableMap<K, NavigableSet<Tracked>> forCategory =
+                groups.computeIfAbsent(category, k -> new ConcurrentSkipListMap<>());
+        if (add) {
+            forCategory.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>(OLDEST_FIRST)).add(tracked);
+        } else {
+            NavigableSet<Tracked> group = forCategory.get(key);
+            if (group != null && group.remove(tracked) && group.isEmpty()) {
+                // Only called under the class lock, so nothing was added to the group meanwhile.
+                forCategory.remove(key);
+            }
+        }
+    }
+
+    /** Adds counts, dropping those that reach zero so that the maps do not grow with every job ever seen. */
+    @CheckForNull
+    private static Integer sumOrDrop(@NonNull Integer a, @NonNull Integer b) {
+        int sum = a + b;
+        return sum != 0 ? sum : null;
+    }
+
+    private static synchronized void track(@NonNull Queue.Item item) {
+        if (items.containsKey(item.getId())) {
+            return;
+        }
+        List<String> categories = ThrottleJobProperty.fetchDescriptor()
+                .withAncestors(ThrottleQueueTaskDispatcher.categoriesOf(item.task));
+        Tracked tracked = new Tracked(
+                item.getId(),
+                categories,
+                CategoryFairShare.jobOf(item.task),
+                item.task,
+                item.getInQueueSince(),
+                CategoryAdmissionOrder.priorityOf(item.task),
+                item.task.getEstimatedDuration());
+        if (items.putIfAbsent(item.getId(), tracked) == null) {
+            byTask.computeIfAbsent(item.task, k -> new ConcurrentSkipListSet<>(OLDEST_FIRST)).add(tracked);
+            for (String category : categories) {
+                byCategory.computeIfAbsent(category, k -> new ConcurrentHashMap<>()).put(item.getId(), tracked);
+                jobCounts
+                        .computeIfAbsent(category, k -> new ConcurrentHashMap<>())
+                        .merge(tracked.jobName(), 1, Integer::sum);
+            }
+        }
+    }
+
+    private static synchronized void untrack(@NonNull Queue.Item item) {
+        setReady(item.getId(), false);
+        Tracked tracked = items.remove(item.getId());
+        if (tracked != null) {
+            byTask.computeIfPresent(tracked.task(), (k, forTask) -> {
+                forTask.remove(tracked);
+                return forTask.isEmpty() ? null : forTask;
+            });
+            for (String category : tracked.categories()) {
+                byCategory.get(category).remove(item.getId());
+                // Jobs without queue items are dropped, so that the counts do not grow with every job ever queued.
+                jobCounts.get(category).computeIfPresent(tracked.jobName(), (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * A queue item as it was when it entered the queue.
+     *
+     * @param id the ID of the queue item.
+     * @param categories the categories of the item and their ancestors.
+     * @param jobName the job name, as returned by {@link CategoryFairShare#jobOf(Queue.Task)}.
+     * @param task the task of the item.
+     * @param inQueueSince when the item entered the queue.
+     * @param priority the priority of the item, as returned by {@link CategoryAdmissionOrder#priorityOf(Queue.Task)}.
+     * @param estimatedDuration the estimated duration of the item in milliseconds, or -1 if unknown.
+     */
+    record Tracked(
+            long id,
+            List<String> categories,
+            String jobName,
+            Queue.Task task,
+            long inQueueSince,
+            int priority,
+            long estimatedDuration) {}
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            track(wi);
+            setReady(wi.getId(), false);
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            track(bi);
+            setReady(bi.getId(), isReady(bi));
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            track(bi);
+            setReady(bi.getId(), isReady(bi));
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            untrack(li);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.slaves.Cloud;
+import hudson.slaves.CloudProvisioningListener;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Vetoes cloud provisioning for a label when every buildable item waiting for that label is throttled by a category
+ * that has reached its {@code maxConcurrentTotal}. A new agent cannot help such items, since the limit applies across
+ * all nodes.
+ *
+ * <p>Items blocked in {@link ThrottleQueueTaskDispatcher#canRun(Queue.Item)} are already not counted as demand. This
+ * covers items that were buildable when their category filled up, until the next {@code Queue.maintain()} blocks them.
+ * Items throttled only by per-node limits are left alone, as a new agent does give them room.
+ */
+@Extension
+public class ThrottleCloudProvisioningListener extends CloudProvisioningListener {
+
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "deliberately mutable")
+    public static boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty(ThrottleCloudProvisioningListener.class.getName() + ".ENABLED", "true"));
+
+    @Override
+    @CheckForNull
+    public CauseOfBlockage canProvision(Cloud cloud, Cloud.CloudState state, int numExecutors) {
+        if (!ENABLED) {
+            return null;
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        Label label = state.getLabel();
+        CategoryOccupancy occupancy = null;
+        int throttled = 0;
+        for (Queue.BuildableItem item : jenkins.getQueue().getBuildableItems()) {
+            if (!Objects.equals(label, item.getAssignedLabel())) {
+                continue;
+            }
+            List<String> categories = ThrottleQueueTaskDispatcher.categoriesOf(item.task);
+            if (categories.isEmpty()) {
+                return null;
+            }
+            if (occupancy == null) {
+                occupancy = CategoryOccupancy.get();
+            }
+            if (occupancy.hasHeadroom(categories)) {
+                return null;
+            }
+            throttled++;
+        }
+        if (throttled == 0) {
+            return null;
+        }
+        LOGGER.log(Level.FINE, "Not provisioning {0} for {1}: all {2} buildable items are throttled", new Object[] {
+            cloud.name, label, throttled
+        });
+        return CauseOfBlockage.fromMessage(Messages._ThrottleCloudProvisioningListener_AllItemsThrottled(throttled));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleCloudProvisioningListener.class.getName());
+}
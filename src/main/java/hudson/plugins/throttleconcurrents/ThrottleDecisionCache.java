@@ -0,0 +1,312 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+/**
+ * Remembers negative throttle decisions per category and node until something happens that could release capacity
+ * in that category.
+ *
+ * <p>A category decision only depends on the category and the node, not on the queue item being checked, so a
+ * decision made for one blocked item is reused for every other item waiting on the same category. Each decision is
+ * stored with a {@link Stamp} taken before it was computed. The stamp combines a per-category generation, bumped when
+ * a build in the category starts or finishes, when a {@code throttle} block is registered or released, or when the
+ * configuration changes, with a queue generation bumped whenever an item leaves the queue, and with the number of
+ * busy executors involved. The executor count catches executors that free up after the listeners of their build have
+ * already fired.
+ *
+ * <p>Only blocked decisions are cached: admitting an item changes the outcome for the next one before any of the
+ * events above have fired.
+ */
+public final class ThrottleDecisionCache {
+
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "deliberately mutable")
+    public static boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty(ThrottleDecisionCache.class.getName() + ".ENABLED", "true"));
+
+    /** Key used for decisions that are not specific to a node, like {@code maxConcurrentTotal}. */
+    private static final String ALL_NODES = "";
+
+    private static final AtomicLong globalGeneration = new AtomicLong();
+
+    private static final AtomicLong queueGeneration = new AtomicLong();
+
+    /** Bumped along with every per-category generation. */
+    private static final AtomicLong anyCategoryGeneration = new AtomicLong();
+
+    private static final ConcurrentMap<String, AtomicLong> categoryGenerations = new ConcurrentHashMap<>();
+
+    /** Map from category names, to node names, to the last blocked decision. */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Entry>> decisions = new ConcurrentHashMap<>();
+
+    private ThrottleDecisionCache() {}
+
+    /**
+     * Return the cached decision for a category if it is still current, otherwise run the check and remember its
+     * result if it blocks.
+     *
+     * @param category the category name.
+     * @param node the node being checked, or {@code null} for a check across all nodes.
+     * @param check the actual throttle check.
+     * @return the cause of blockage, or {@code null} if the category has room.
+     */
+    @CheckForNull
+    static CauseOfBlockage computeIfBlocked(
+            @NonNull String category, @CheckForNull Node node, @NonNull Supplier<CauseOfBlockage> check) {
+        if (!ENABLED) {
+            return check.get();
+        }
+        Stamp stamp = stamp(category, node);
+        String nodeKey = nodeKey(node);
+        Map<String, Entry> forCategory = decisions.get(category);
+        if (forCategory != null) {
+            Entry entry = forCategory.get(nodeKey);
+            if (entry != null && entry.stamp().equals(stamp)) {
+                return entry.cause();
+            }
+        }
+        CauseOfBlockage cause = check.get();
+        if (cause != null) {
+            decisions.computeIfAbsent(category, k -> new ConcurrentHashMap<>()).put(nodeKey, new Entry(stamp, cause));
+        } else if (forCategory != null) {
+            forCategory.remove(nodeKey);
+        }
+        return cause;
+    }
+
+    /**
+     * Record that something changed capacity or membership of a category, and therefore of its ancestors.
+     *
+     * @param category the category name.
+     */
+    public static void categoryChanged(@NonNull String category) {
+        generation(category).incrementAndGet();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        ThrottleJobProperty.DescriptorImpl descriptor =
+                jenkins != null ? jenkins.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class) : null;
+        if (descriptor != null) {
+            for (String ancestor : descriptor.getAncestors(category)) {
+                generation(ancestor).incrementAndGet();
+            }
+        }
+        anyCategoryGeneration.incrementAndGet();
+    }
+
+    /**
+     * Record that something changed capacity or membership of several categories.
+     *
+     * @param categories the category names.
+     */
+    public static void categoriesChanged(@NonNull Collection<String> categories) {
+        for (String category : categories) {
+            categoryChanged(category);
+        }
+    }
+
+    /**
+     * Check whether the last decision for a category on any node was to block.
+     *
+     * @param category the category name.
+     * @return {@code true} if items may be waiting on the category; always {@code true} if the cache is disabled.
+     */
+    static boolean hasBlocked(@NonNull String category) {
+        if (!ENABLED) {
+            return true;
+        }
+        Map<String, Entry> forCategory = decisions.get(category);
+        return forCategory != null && !forCategory.isEmpty();
+    }
+
+    /** Forget every cached decision, e.g. after a configuration change. */
+    public static void invalidateAll() {
+        globalGeneration.incrementAndGet();
+        decisions.clear();
+    }
+
+    @NonNull
+    private static AtomicLong generation(@NonNull String category) {
+        return categoryGenerations.computeIfAbsent(category, k -> new AtomicLong());
+    }
+
+    @NonNull
+    private static Stamp stamp(@NonNull String category, @CheckForNull Node node) {
+        return new Stamp(
+                globalGeneration.get(), generation(category).get(), queueGeneration.get(), busyExecutors(node));
+    }
+
+    /**
+     * Take a stamp that changes whenever a decision for any category on any node could have become stale. Used for
+     * state derived from all categories at once, like {@link CategoryOccupancy}.
+     *
+     * @return the current stamp.
+     */
+    @NonNull
+    static Stamp globalStamp() {
+        return new Stamp(
+                globalGeneration.get(), anyCategoryGeneration.get(), queueGeneration.get(), busyExecutors(null));
+    }
+
+    @NonNull
+    private static String nodeKey(@CheckForNull Node node) {
+        return node == null ? ALL_NODES : node.getNodeName();
+    }
+
+    private static int busyExecutors(@CheckForNull Node node) {
+        if (node != null) {
+            return busyExecutors(node.toComputer());
+        }
+        int busy = 0;
+        for (Computer computer : Jenkins.get().getComputers()) {
+            busy += busyExecutors(computer);
+        }
+        return busy;
+    }
+
+    private static int busyExecutors(@CheckForNull Computer computer) {
+        // Not all nodes are certain to become computers, like nodes with 0 executors.
+        if (computer == null) {
+            return 0;
+        }
+        return computer.countBusy() + computer.getOneOffExecutors().size();
+    }
+
+    /**
+     * Get the names of the categories a run is throttled in, either through its {@link ThrottleJobProperty} or
+     * through {@code throttle} blocks.
+     *
+     * @param run the run.
+     * @return the category names, possibly empty.
+     */
+    @NonNull
+    static Set<String> categoriesOf(@NonNull Run<?, ?> run) {
+        Set<String> categories = new TreeSet<>();
+        Job<?, ?> job = run.getParent();
+        if (job instanceof MatrixConfiguration configuration) {
+            job = configuration.getParent();
+        }
+        ThrottleJobProperty tjp = job.getProperty(ThrottleJobProperty.class);
+        if (tjp != null && tjp.getThrottleEnabled()) {
+            categories.addAll(tjp.getCategories());
+        }
+        if (job instanceof Queue.Task task) {
+            categories.addAll(CategoryMembership.categoriesOf(task));
+        }
+        if (run instanceof FlowExecutionOwner.Executable) {
+            for (List<String> c : ThrottleJobProperty.getCategoriesForRunByFlowNode(run).values()) {
+                categories.addAll(c);
+            }
+        }
+        return categories;
+    }
+
+    record Stamp(long global, long category, long queue, int busyExecutors) {}
+
+    private record Entry(Stamp stamp, CauseOfBlockage cause) {}
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            categoriesChanged(categoriesOf(run));
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
+            Set<String> categories = categoriesOf(run);
+            if (run instanceof FlowExecutionOwner.Executable) {
+                // Blocks that never unwound, e.g. after a hard kill, would otherwise hold capacity until pruned.
+                ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+                for (String category : categories) {
+                    descriptor.removeAllFromPipelineRunForCategory(run.getExternalizableId(), category, null);
+                }
+            }
+            categoriesChanged(categories);
+            QueueWakeUp.capacityReleased(categories, run);
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            categoriesChanged(categoriesOf(run));
+        }
+    }
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            // A pending item either started or was cancelled; either way a BuildPending decision may be stale.
+            queueGeneration.incrementAndGet();
+        }
+    }
+
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            invalidateAll();
+        }
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidateAll();
+        }
+
+        @Override
+        public void onOffline(@NonNull Computer c, @CheckForNull OfflineCause cause) {
+            invalidateAll();
+        }
+    }
+
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                invalidateAll();
+            }
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidateAll();
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidateAll();
+        }
+    }
+}
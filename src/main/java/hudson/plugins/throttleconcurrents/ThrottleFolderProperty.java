@@ -0,0 +1,219 @@
+package hudson.plugins.throttleconcurrents;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest2;
+
+/**
+ * Throttles every job inside a folder, at any depth and including the branch projects of multibranch projects, as if
+ * each had a {@link ThrottleJobProperty} with these settings. A job with its own {@link ThrottleJobProperty} keeps its
+ * own settings, and the nearest folder with this property wins.
+ *
+ * <p>The effective settings of each job are resolved once, by walking up its folders, and cached until this property
+ * is added to, replaced in or removed from a folder, or an item is moved or deleted. Other saves of a folder, such as
+ * the ones of each multibranch scan, keep the cache. {@link ThrottleQueueTaskDispatcher#getThrottleJobProperty} reads
+ * the settings from the cache.
+ */
+public class ThrottleFolderProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+
+    /** Whether any folder has ever had this property, so that jobs are not looked up while none has. */
+    private static volatile boolean inUse;
+
+    /** Map from job full names, to the settings the job inherits, if any. */
+    private static final ConcurrentMap<String, Optional<ThrottleJobProperty>> inherited = new ConcurrentHashMap<>();
+
+    /** Map from folder full names, to the property each folder had when it was last seen. */
+    private static final ConcurrentMap<String, ThrottleFolderProperty> byFolder = new ConcurrentHashMap<>();
+
+    private final Integer maxConcurrentPerNode;
+    private final Integer maxConcurrentTotal;
+    private final List<String> categories;
+    private final String throttleOption;
+
+    /** The settings applied to the jobs in the folder, created on first use. */
+    private transient volatile ThrottleJobProperty jobProperty;
+
+    @DataBoundConstructor
+    public ThrottleFolderProperty(
+            Integer maxConcurrentPerNode, Integer maxConcurrentTotal, List<String> categories, String throttleOption) {
+        this.maxConcurrentPerNode = maxConcurrentPerNode;
+        this.maxConcurrentTotal = maxConcurrentTotal;
+        this.categories = categories == null ? new CopyOnWriteArrayList<>() : new CopyOnWriteArrayList<>(categories);
+        this.throttleOption = throttleOption;
+    }
+
+    public Integer getMaxConcurrentPerNode() {
+        return maxConcurrentPerNode != null ? maxConcurrentPerNode : 0;
+    }
+
+    public Integer getMaxConcurrentTotal() {
+        return maxConcurrentTotal != null ? maxConcurrentTotal : 0;
+    }
+
+    @NonNull
+    public List<String> getCategories() {
+        return categories != null ? categories : new CopyOnWriteArrayList<>();
+    }
+
+    @NonNull
+    public String getThrottleOption() {
+        return throttleOption != null ? throttleOption : "project";
+    }
+
+    @Override
+    protected void setOwner(@NonNull AbstractFolder<?> owner) {
+        super.setOwner(owner);
+        inUse = true;
+        if (byFolder.put(owner.getFullName(), this) != this) {
+            invalidate();
+        }
+    }
+
+    /**
+     * @return the settings applied to each job in the folder.
+     */
+    @NonNull
+    ThrottleJobProperty asJobProperty() {
+        ThrottleJobProperty property = jobProperty;
+        if (property == null) {
+            property = new ThrottleJobProperty(
+                    getMaxConcurrentPerNode(),
+                    getMaxConcurrentTotal(),
+                    getCategories(),
+                    true, // throttleEnabled
+                    getThrottleOption(),
+                    false, // limitOneJobWithMatchingParams
+                    null, // paramsToUseForLimit
+                    ThrottleMatrixProjectOptions.DEFAULT);
+            jobProperty = property;
+        }
+        return property;
+    }
+
+    /**
+     * Get the settings a job inherits from the nearest folder with this property.
+     *
+     * @param job the job, which should not have a {@link ThrottleJobProperty} of its own.
+     * @return the inherited settings, or {@code null} if no folder above the job has this property.
+     */
+    @CheckForNull
+    static ThrottleJobProperty inheritedBy(@NonNull Job<?, ?> job) {
+        if (!inUse) {
+            return null;
+        }
+        return inherited
+                .computeIfAbsent(job.getFullName(), k -> Optional.ofNullable(resolve(job)))
+                .orElse(null);
+    }
+
+    @CheckForNull
+    private static ThrottleJobProperty resolve(@NonNull Job<?, ?> job) {
+        ItemGroup<?> parent = job.getParent();
+        while (parent instanceof AbstractFolder<?> folder) {
+            ThrottleFolderProperty property = folder.getProperties().get(ThrottleFolderProperty.class);
+            if (property != null) {
+                return property.asJobProperty();
+            }
+            parent = folder.getParent();
+        }
+        return null;
+    }
+
+    /** Forget the inherited settings of all jobs, along with everything derived from them. */
+    static void invalidate() {
+        inherited.clear();
+        CategoryMembership.invalidate();
+        ThrottleDecisionCache.invalidateAll();
+    }
+
+    /**
+     * @return whether any folder has had this property since startup.
+     */
+    static boolean isInUse() {
+        return inUse;
+    }
+
+    @Extension
+    @Symbol("throttleFolderProperty")
+    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.ThrottleFolderProperty_DisplayName();
+        }
+
+        @CheckForNull
+        @Override
+        public AbstractFolderProperty<?> newInstance(StaplerRequest2 req, @NonNull JSONObject formData)
+                throws FormException {
+            // The property is only kept while throttling is enabled in the form.
+            return formData.optBoolean("throttleEnabled") ? super.newInstance(req, formData) : null;
+        }
+
+        /**
+         * @return the configured categories, for the configuration form.
+         */
+        @NonNull
+        public List<ThrottleJobProperty.ThrottleCategory> getCategories() {
+            return ThrottleJobProperty.fetchDescriptor().getCategories();
+        }
+    }
+
+    /** Drops the inherited settings when a folder is saved with a different property, e.g. because it was removed. */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (inUse && o instanceof AbstractFolder<?> folder) {
+                ThrottleFolderProperty current = folder.getProperties().get(ThrottleFolderProperty.class);
+                ThrottleFolderProperty previous = current != null
+                        ? byFolder.put(folder.getFullName(), current)
+                        : byFolder.remove(folder.getFullName());
+                if (previous != current) {
+                    invalidate();
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (inUse && !(item instanceof Job)) {
+                byFolder.clear();
+                invalidate();
+            } else {
+                inherited.remove(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (inUse) {
+                // Folders are known by their full names, which may have changed below this item too.
+                byFolder.clear();
+                invalidate();
+            }
+        }
+    }
+}
@@ -8,15 +8,18 @@ import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.matrix.MatrixRun;
 import hudson.model.AbstractDescribableImpl;
+import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.Label;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
 import hudson.util.CopyOnWriteMap;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -26,16 +29,24 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
@@ -47,6 +58,7 @@ import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -63,6 +75,8 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
     private boolean limitOneJobWithMatchingParams;
     private transient boolean throttleConfiguration;
     private @CheckForNull ThrottleMatrixProjectOptions matrixOptions;
+    private int priority;
+    private int maxConcurrentPerParamValue;
 
     // The paramsToUseForLimit is assigned by end-user configuration and
     // is generally a string with names of build arguments to consider,
@@ -154,6 +168,7 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
                     properties.put(this, null);
                 }
             }
+            ThrottleDecisionCache.categoriesChanged(categories);
         }
     }
 
@@ -193,6 +208,32 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
         return paramsToUseForLimit;
     }
 
+    /**
+     * The number of builds with matching parameters that may run at once when
+     * {@link #isLimitOneJobWithMatchingParams()} is set, at least 1.
+     */
+    public int getMaxConcurrentPerParamValue() {
+        return Math.max(maxConcurrentPerParamValue, 1);
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPerParamValue(int maxConcurrentPerParamValue) {
+        this.maxConcurrentPerParamValue = Math.max(maxConcurrentPerParamValue, 0);
+    }
+
+    /**
+     * The priority of builds of this job in categories that admit builds by priority, see
+     * {@link CategoryAdmissionOrder}. Higher values go first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     @CheckForNull
     public ThrottleMatrixProjectOptions getMatrixOptions() {
         return matrixOptions;
@@ -262,7 +303,7 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
 
         final DescriptorImpl descriptor = fetchDescriptor();
 
-        for (ThrottleCategory cat : descriptor.getCategories()) {
+        for (ThrottleCategory cat : descriptor.getActiveCategories()) {
             Map<String, List<String>> runs = descriptor.getThrottledPipelinesForCategory(cat.getCategoryName());
             List<String> nodeIds = runs.get(run.getExternalizableId());
             if (nodeIds != null) {
@@ -277,10 +318,11 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
     }
 
     /**
-     * Get all {@link Queue.Task}s with {@link ThrottleJobProperty}s attached to them.
+     * Get all {@link Queue.Task}s with {@link ThrottleJobProperty}s attached to them, and the jobs in the category by
+     * name, folder or label, see {@link CategoryMembership}.
      *
      * @param category a non-null string, the category name.
-     * @return A list of {@link Queue.Task}s with {@link ThrottleJobProperty} attached.
+     * @return A list of {@link Queue.Task}s in the category.
      */
     static List<Queue.Task> getCategoryTasks(@NonNull String category) {
         assert !StringUtils.isEmpty(category);
@@ -308,6 +350,15 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
                 }
             }
         }
+        List<Queue.Task> matchedTasks = CategoryMembership.tasksIn(category);
+        if (!matchedTasks.isEmpty()) {
+            Set<Queue.Task> listed = new HashSet<>(categoryTasks);
+            for (Queue.Task task : matchedTasks) {
+                if (!listed.contains(task)) {
+                    categoryTasks.add(task);
+                }
+            }
+        }
 
         return categoryTasks;
     }
@@ -387,11 +438,32 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
 
         private Map<String, Map<String, List<String>>> throttledPipelinesByCategory;
 
+        /** Whether {@link ThrottleQueueSorter} moves items of saturated categories to the back of the queue. */
+        private boolean sortQueueByCapacity;
+
+        /** Whether {@link ThrottleLoadBalancer} places category builds on the emptiest candidate node. */
+        private boolean spreadCategoryBuilds;
+
+        /** The maximum number of throttled builds on any node, whatever their categories, or 0 for no limit. */
+        private int maxThrottledBuildsPerNode;
+
+        /** Overrides of {@link #maxThrottledBuildsPerNode} for nodes with a given label. */
+        private List<NodeLabeledPair> nodeLabeledPairs;
+
         /** Map from category names, to properties including that category. */
         private transient Map<String, Map<ThrottleJobProperty, Void>> propertiesByCategory = new HashMap<>();
         /** A sync object for {@link #propertiesByCategory} */
         private final transient Object propertiesByCategoryLock = new Object();
 
+        /** The configured categories by name, rebuilt when {@link #categories} changes. */
+        private transient volatile CategoryIndex categoryIndex;
+
+        /**
+         * Map from category names, to categories created from a template that have {@code throttle} blocks registered,
+         * see {@link #getCategoryByName}.
+         */
+        private final transient ConcurrentMap<String, ThrottleCategory> derivedCategories = new ConcurrentHashMap<>();
+
         public DescriptorImpl() {
             super(ThrottleJobProperty.class);
             synchronized (propertiesByCategoryLock) {
@@ -427,9 +499,15 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             if (!formData.has("categories")) {
                 this.categories = null;
             }
+            if (!formData.has("nodeLabeledPairs")) {
+                this.nodeLabeledPairs = null;
+            }
 
             req.bindJSON(this, formData);
             save();
+            ThrottleDecisionCache.invalidateAll();
+            // Limits may have been raised.
+            CategoryPermits.poll();
             return true;
         }
 
@@ -461,22 +539,190 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             return checkNullOrInt(value);
         }
 
+        /**
+         * Look up a category by name. A name that is not configured but matches a template, see
+         * {@link ThrottleCategory#isTemplate()}, gets a category created on demand with the limits of the first
+         * matching template. Such categories are only kept while {@code throttle} blocks are registered in them, so
+         * that looking up a name, e.g. to validate it, does not keep a category around.
+         *
+         * @param categoryName the category name.
+         * @return the category, or {@code null} if there is none.
+         */
         public ThrottleCategory getCategoryByName(String categoryName) {
-            ThrottleCategory category = null;
+            CategoryIndex index = categoryIndex();
+            ThrottleCategory category = index.byName().get(categoryName);
+            if (category == null && categoryName != null && !index.templates().isEmpty()) {
+                category = derivedCategories.get(categoryName);
+                if (category == null) {
+                    for (ThrottleCategory template : index.templates()) {
+                        if (template.matches(categoryName)) {
+                            category = template.derive(categoryName);
+                            break;
+                        }
+                    }
+                }
+            }
+            return category;
+        }
 
-            if (categories != null) {
-                for (ThrottleCategory tc : categories) {
-                    if (tc.getCategoryName().equals(categoryName)) {
-                        category = tc;
+        @NonNull
+        private CategoryIndex categoryIndex() {
+            List<ThrottleCategory> source = getCategories();
+            CategoryIndex index = categoryIndex;
+            if (index == null || index.source() != source || index.size() != source.size()) {
+                Map<String, ThrottleCategory> byName = new HashMap<>();
+                List<ThrottleCategory> templates = new ArrayList<>();
+                List<ThrottleCategory> matchingJobs = new ArrayList<>();
+                Map<String, List<ThrottleCategory>> childrenByParent = new HashMap<>();
+                for (ThrottleCategory tc : source) {
+                    // The last category of a name wins, as with the former linear scan.
+                    byName.put(tc.getCategoryName(), tc);
+                    if (tc.getParent() != null) {
+                        childrenByParent.computeIfAbsent(tc.getParent(), k -> new ArrayList<>()).add(tc);
+                    }
+                    if (tc.isTemplate()) {
+                        templates.add(tc);
+                    } else if (tc.isMatchingJobs()) {
+                        matchingJobs.add(tc);
                     }
                 }
+                index = new CategoryIndex(source, source.size(), byName, templates, matchingJobs, childrenByParent);
+                categoryIndex = index;
+                derivedCategories.clear();
             }
+            return index;
+        }
 
-            return category;
+        /**
+         * @return the configured categories that jobs can be in by name, folder or label, see
+         *     {@link ThrottleCategory#isMatchingJobs()}. The same list is returned until the categories change.
+         */
+        @NonNull
+        List<ThrottleCategory> getCategoriesMatchingJobs() {
+            return categoryIndex().matchingJobs();
+        }
+
+        /**
+         * @return the configured categories, followed by the categories created from templates that have
+         *     {@code throttle} blocks registered.
+         */
+        @NonNull
+        synchronized List<ThrottleCategory> getActiveCategories() {
+            List<ThrottleCategory> active = new ArrayList<>(getCategories());
+            for (String categoryName : throttledPipelinesByCategory.keySet()) {
+                ThrottleCategory category = getCategoryByName(categoryName);
+                if (category != null && category.isDerived()) {
+                    active.add(category);
+                }
+            }
+            return active;
+        }
+
+        /** Forget a category created from a template once nothing is registered in it. */
+        private void forgetIfIdle(@NonNull String categoryName) {
+            if (!throttledPipelinesByCategory.containsKey(categoryName)) {
+                derivedCategories.remove(categoryName);
+            }
+        }
+
+        /** The configured categories, indexed for lookups by name. */
+        private record CategoryIndex(
+                List<ThrottleCategory> source,
+                int size,
+                Map<String, ThrottleCategory> byName,
+                List<ThrottleCategory> templates,
+                List<ThrottleCategory> matchingJobs,
+                Map<String, List<ThrottleCategory>> childrenByParent) {}
+
+        /**
+         * Get the ancestors of a category through {@link ThrottleCategory#getParent()}, nearest first. The chain ends
+         * at a parent that does not exist or that would close a cycle.
+         *
+         * @param categoryName the category name.
+         * @return the names of the ancestors, possibly empty.
+         */
+        @NonNull
+        public List<String> getAncestors(@NonNull String categoryName) {
+            List<String> ancestors = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            seen.add(categoryName);
+            ThrottleCategory category = getCategoryByName(categoryName);
+            while (category != null && category.getParent() != null && seen.add(category.getParent())) {
+                category = getCategoryByName(category.getParent());
+                if (category != null) {
+                    ancestors.add(category.getCategoryName());
+                }
+            }
+            return ancestors;
+        }
+
+        /**
+         * @param categoryName the category name.
+         * @return whether another category names this one as its parent.
+         */
+        public boolean hasChildren(@NonNull String categoryName) {
+            return categoryIndex().childrenByParent().containsKey(categoryName);
+        }
+
+        /**
+         * @param categoryName the category name.
+         * @return the categories that name this one as their parent, including those created from templates that have
+         *     {@code throttle} blocks registered.
+         */
+        @NonNull
+        List<ThrottleCategory> getChildren(@NonNull String categoryName) {
+            CategoryIndex index = categoryIndex();
+            List<ThrottleCategory> children = index.childrenByParent().getOrDefault(categoryName, List.of());
+            if (index.templates().isEmpty() || derivedCategories.isEmpty()) {
+                return children;
+            }
+            List<ThrottleCategory> withDerived = new ArrayList<>(children);
+            for (ThrottleCategory category : derivedCategories.values()) {
+                if (categoryName.equals(category.getParent())) {
+                    withDerived.add(category);
+                }
+            }
+            return withDerived;
+        }
+
+        /**
+         * @param categoryName the category name.
+         * @return the category followed by every category that has it as an ancestor.
+         */
+        @NonNull
+        public List<String> withDescendants(@NonNull String categoryName) {
+            if (!hasChildren(categoryName)) {
+                return Collections.singletonList(categoryName);
+            }
+            List<String> members = new ArrayList<>();
+            members.add(categoryName);
+            for (ThrottleCategory category : getActiveCategories()) {
+                if (getAncestors(category.getCategoryName()).contains(categoryName)) {
+                    members.add(category.getCategoryName());
+                }
+            }
+            return members;
+        }
+
+        /**
+         * @param categoryNames the category names.
+         * @return the categories followed by their ancestors, without duplicates or empty names.
+         */
+        @NonNull
+        public List<String> withAncestors(@NonNull Collection<String> categoryNames) {
+            Set<String> result = new LinkedHashSet<>();
+            for (String categoryName : categoryNames) {
+                if (categoryName != null && !categoryName.isEmpty()) {
+                    result.add(categoryName);
+                    result.addAll(getAncestors(categoryName));
+                }
+            }
+            return new ArrayList<>(result);
         }
 
         public void setCategories(List<ThrottleCategory> categories) {
             this.categories = new CopyOnWriteArrayList<>(categories);
+            ThrottleDecisionCache.invalidateAll();
         }
 
         public List<ThrottleCategory> getCategories() {
@@ -487,6 +733,63 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             return categories;
         }
 
+        public boolean isSortQueueByCapacity() {
+            return sortQueueByCapacity;
+        }
+
+        public void setSortQueueByCapacity(boolean sortQueueByCapacity) {
+            this.sortQueueByCapacity = sortQueueByCapacity;
+            ThrottleQueueSorter.install(sortQueueByCapacity);
+        }
+
+        public boolean isSpreadCategoryBuilds() {
+            return spreadCategoryBuilds;
+        }
+
+        public void setSpreadCategoryBuilds(boolean spreadCategoryBuilds) {
+            this.spreadCategoryBuilds = spreadCategoryBuilds;
+            ThrottleLoadBalancer.install(spreadCategoryBuilds);
+        }
+
+        public int getMaxThrottledBuildsPerNode() {
+            return maxThrottledBuildsPerNode;
+        }
+
+        public void setMaxThrottledBuildsPerNode(int maxThrottledBuildsPerNode) {
+            this.maxThrottledBuildsPerNode = Math.max(maxThrottledBuildsPerNode, 0);
+            ThrottleDecisionCache.invalidateAll();
+        }
+
+        @NonNull
+        public List<NodeLabeledPair> getNodeLabeledPairs() {
+            if (nodeLabeledPairs == null) {
+                nodeLabeledPairs = new CopyOnWriteArrayList<>();
+            }
+            return nodeLabeledPairs;
+        }
+
+        public void setNodeLabeledPairs(List<NodeLabeledPair> nodeLabeledPairs) {
+            this.nodeLabeledPairs = new CopyOnWriteArrayList<>(nodeLabeledPairs);
+            ThrottleDecisionCache.invalidateAll();
+        }
+
+        /**
+         * Check whether any per-node limit applies across categories.
+         *
+         * @return {@code true} if {@link #getMaxThrottledBuildsPerNode()} or one of its per-label overrides is set.
+         */
+        boolean isThrottledBuildsPerNodeLimited() {
+            if (maxThrottledBuildsPerNode > 0) {
+                return true;
+            }
+            for (NodeLabeledPair pair : getNodeLabeledPairs()) {
+                if (pair.getMaxConcurrentPerNodeLabeled() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @SuppressWarnings("lgtm[jenkins/csrf]")
         public ListBoxModel doFillCategoryItems(@AncestorInPath Item item) {
             if (item != null) {
@@ -500,7 +803,9 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             m.add("(none)", "");
 
             for (ThrottleCategory tc : getCategories()) {
-                m.add(tc.getCategoryName());
+                if (!tc.isTemplate()) {
+                    m.add(tc.getCategoryName());
+                }
             }
 
             return m;
@@ -599,7 +904,8 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
 
         public synchronized void addThrottledPipelineForCategory(
                 @NonNull String runId, @NonNull String flowNodeId, @NonNull String category, TaskListener listener) {
-            if (getCategoryByName(category) == null) {
+            ThrottleCategory throttleCategory = getCategoryByName(category);
+            if (throttleCategory == null) {
                 if (listener != null) {
                     listener.getLogger().println(Messages.ThrottleJobProperty_DescriptorImpl_NoSuchCategory(category));
                 }
@@ -613,6 +919,11 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
                 flowNodes.add(flowNodeId);
                 currentPipelines.put(runId, flowNodes);
                 throttledPipelinesByCategory.put(category, currentPipelines);
+                if (throttleCategory.isDerived()) {
+                    derivedCategories.putIfAbsent(category, throttleCategory);
+                }
+                CategoryCounts.blockAdded(runId, flowNodeId, category);
+                ThrottleDecisionCache.categoryChanged(category);
             }
         }
 
@@ -642,9 +953,54 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
                 } else {
                     throttledPipelinesByCategory.put(category, currentPipelines);
                 }
+                CategoryCounts.blockRemoved(runId, flowNodeId, category);
+                ThrottleDecisionCache.categoryChanged(category);
+                forgetIfIdle(category);
+            }
+        }
+
+        /**
+         * Register a {@code throttle} block in several categories at once, in a canonical order, so that nobody sees
+         * the block in some of its categories but not yet in the others.
+         *
+         * @param runId the ID of the run.
+         * @param flowNodeId the ID of the start node of the block.
+         * @param categories the category names.
+         * @param listener the listener to log to, if any.
+         */
+        public synchronized void addThrottledPipeline(
+                @NonNull String runId,
+                @NonNull String flowNodeId,
+                @NonNull Collection<String> categories,
+                TaskListener listener) {
+            for (String category : new TreeSet<>(categories)) {
+                addThrottledPipelineForCategory(runId, flowNodeId, category, listener);
             }
         }
 
+        /**
+         * Remove a {@code throttle} block from every category it is registered in.
+         *
+         * @param runId the ID of the run.
+         * @param flowNodeId the ID of the start node of the block.
+         * @param listener the listener to log to, if any.
+         * @return the names of the categories the block was removed from.
+         */
+        @NonNull
+        public synchronized List<String> removeThrottledPipeline(
+                @NonNull String runId, @NonNull String flowNodeId, TaskListener listener) {
+            List<String> released = new ArrayList<>();
+            for (ThrottleCategory category : getActiveCategories()) {
+                List<String> flowNodes =
+                        internalGetThrottledPipelinesForCategory(category.getCategoryName()).get(runId);
+                if (flowNodes != null && flowNodes.contains(flowNodeId)) {
+                    removeThrottledPipelineForCategory(runId, flowNodeId, category.getCategoryName(), listener);
+                    released.add(category.getCategoryName());
+                }
+            }
+            return released;
+        }
+
         public synchronized void removeAllFromPipelineRunForCategory(
                 @NonNull String runId, @NonNull String category, TaskListener listener) {
             if (getCategoryByName(category) == null) {
@@ -662,15 +1018,43 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
                 } else {
                     throttledPipelinesByCategory.put(category, currentPipelines);
                 }
+                CategoryCounts.runRemoved(runId, category);
+                ThrottleDecisionCache.categoryChanged(category);
+                forgetIfIdle(category);
             }
         }
     }
 
     public static final class ThrottleCategory extends AbstractDescribableImpl<ThrottleCategory> {
+        private static final Logger LOGGER = Logger.getLogger(ThrottleCategory.class.getName());
+
         private Integer maxConcurrentPerNode;
         private Integer maxConcurrentTotal;
         private String categoryName;
         private List<NodeLabeledPair> nodeLabeledPairs;
+        private boolean countThrottleBlocks;
+        private boolean suspendPausedBlocks;
+        private String parent;
+        private int guaranteedMinimum;
+        private boolean fairShare;
+        private String admissionOrder;
+        private Integer agingMinutes;
+        private int maxQueued;
+        private String queueOverflow;
+        private String paramToCompare;
+        private int maxConcurrentPerParamValue;
+        private String jobNamePattern;
+        private String jobFolder;
+        private String jobLabel;
+
+        /** {@link #jobNamePattern}, compiled on first use. */
+        private transient volatile Pattern compiledJobNamePattern;
+
+        /** Whether this category was created from a template rather than configured. */
+        private transient boolean derived;
+
+        /** The pattern of {@link #categoryName} if this is a template, compiled on first use. */
+        private transient volatile Pattern templatePattern;
 
         @DataBoundConstructor
         public ThrottleCategory(
@@ -712,12 +1096,327 @@ public class ThrottleJobProperty extends JobProperty<Job<?, ?>> {
             return nodeLabeledPairs;
         }
 
+        /**
+         * Whether this category is a template: a name with {@code *} in it, such as {@code deploy-*}, stands for every
+         * category name matching it, e.g. computed in a Pipeline as {@code "deploy-${env.REGION}"}. Each such name
+         * gets its own category with the limits of the template.
+         */
+        public boolean isTemplate() {
+            return categoryName != null && categoryName.indexOf('*') >= 0;
+        }
+
+        /**
+         * @return whether this category was created on demand from a template.
+         */
+        public boolean isDerived() {
+            return derived;
+        }
+
+        boolean matches(@NonNull String name) {
+            Pattern pattern = templatePattern;
+            if (pattern == null) {
+                pattern = Pattern.compile(Arrays.stream(categoryName.split("\\*", -1))
+                        .map(Pattern::quote)
+                        .collect(Collectors.joining(".*")));
+                templatePattern = pattern;
+            }
+            return pattern.matcher(name).matches();
+        }
+
+        /**
+         * Create a category with the given name and the limits of this template.
+         */
+        @NonNull
+        ThrottleCategory derive(@NonNull String name) {
+            ThrottleCategory category =
+                    new ThrottleCategory(name, maxConcurrentPerNode, maxConcurrentTotal, getNodeLabeledPairs());
+            category.countThrottleBlocks = countThrottleBlocks;
+            category.suspendPausedBlocks = suspendPausedBlocks;
+            category.parent = parent;
+            category.guaranteedMinimum = guaranteedMinimum;
+            category.fairShare = fairShare;
+            category.admissionOrder = admissionOrder;
+            category.agingMinutes = agingMinutes;
+            category.maxQueued = maxQueued;
+            category.queueOverflow = queueOverflow;
+            category.paramToCompare = paramToCompare;
+            category.maxConcurrentPerParamValue = maxConcurrentPerParamValue;
+            category.jobNamePattern = jobNamePattern;
+            category.jobFolder = jobFolder;
+            category.jobLabel = jobLabel;
+            category.derived = true;
+            return category;
+        }
+
+        /**
+         * Whether {@code maxConcurrentTotal} counts each {@code throttle} block once, however many nodes it uses. Such
+         * blocks acquire their slot when they start, through {@link CategoryPermits}.
+         */
+        public boolean isCountThrottleBlocks() {
+            return countThrottleBlocks;
+        }
+
+        @DataBoundSetter
+        public void setCountThrottleBlocks(boolean countThrottleBlocks) {
+            this.countThrottleBlocks = countThrottleBlocks;
+        }
+
+        /**
+         * Whether {@code throttle} blocks that only wait on {@code input}, {@code sleep} or {@code waitUntil} are left
+         * out of the counts, see {@link PausedBlocks}.
+         */
+        public boolean isSuspendPausedBlocks() {
+            return suspendPausedBlocks;
+        }
+
+        @DataBoundSetter
+        public void setSuspendPausedBlocks(boolean suspendPausedBlocks) {
+            this.suspendPausedBlocks = suspendPausedBlocks;
+        }
+
+        /**
+         * The name of a category whose limits also apply to builds in this one, counting the builds of all its child
+         * categories together.
+         */
+        @CheckForNull
+        public String getParent() {
+            return parent;
+        }
+
+        @DataBoundSetter
+        public void setParent(String parent) {
+            this.parent = Util.fixEmptyAndTrim(parent);
+        }
+
+        /**
+         * The number of builds of the parent category's {@code maxConcurrentTotal} set aside for this category while
+         * it has queued builds, see {@link CategoryReservations}.
+         */
+        public int getGuaranteedMinimum() {
+            return guaranteedMinimum;
+        }
+
+        @DataBoundSetter
+        public void setGuaranteedMinimum(int guaranteedMinimum) {
+            this.guaranteedMinimum = Math.max(guaranteedMinimum, 0);
+        }
+
+        /**
+         * Whether free capacity is shared out evenly among the jobs with queued builds, see {@link CategoryFairShare}.
+         */
+        public boolean isFairShare() {
+            return fairShare;
+        }
+
+        @DataBoundSetter
+        public void setFairShare(boolean fairShare) {
+            this.fairShare = fairShare;
+        }
+
+        /**
+         * The order in which waiting builds are admitted when the category is short of capacity, one of
+         * {@link CategoryAdmissionOrder#QUEUE}, {@link CategoryAdmissionOrder#PRIORITY} or
+         * {@link CategoryAdmissionOrder#SHORTEST_FIRST}.
+         */
+        @NonNull
+        public String getAdmissionOrder() {
+            return admissionOrder != null ? admissionOrder : CategoryAdmissionOrder.QUEUE;
+        }
+
+        @DataBoundSetter
+        public void setAdmissionOrder(String admissionOrder) {
+            admissionOrder = Util.fixEmptyAndTrim(admissionOrder);
+            this.admissionOrder = CategoryAdmissionOrder.QUEUE.equals(admissionOrder) ? null : admissionOrder;
+        }
+
+        /**
+         * The number of minutes a build has to wait to move up one priority level, or 0 to never move up. See
+         * {@link CategoryAdmissionOrder} for how waiting counts when admitting the shortest builds first.
+         */
+        public int getAgingMinutes() {
+            return agingMinutes != null ? agingMinutes : CategoryAdmissionOrder.DEFAULT_AGING_MINUTES;
+        }
+
+        @DataBoundSetter
+        public void setAgingMinutes(int agingMinutes) {
+            this.agingMinutes = Math.max(agingMinutes, 0);
+        }
+
+        /**
+         * The number of queue items the category may have before {@link #getQueueOverflow()} applies to new builds of
+         * projects in the category, or 0 for no limit.
+         */
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        @DataBoundSetter
+        public void setMaxQueued(int maxQueued) {
+            this.maxQueued = Math.max(maxQueued, 0);
+        }
+
+        /**
+         * What happens to new builds once the category has {@link #getMaxQueued()} queue items, one of
+         * {@link ThrottleQueueDecisionHandler#REJECT}, {@link ThrottleQueueDecisionHandler#COALESCE} or
+         * {@link ThrottleQueueDecisionHandler#DROP_OLDEST}.
+         */
+        @NonNull
+        public String getQueueOverflow() {
+            return queueOverflow != null ? queueOverflow : ThrottleQueueDecisionHandler.REJECT;
+        }
+
+        @DataBoundSetter
+        public void setQueueOverflow(String queueOverflow) {
+            queueOverflow = Util.fixEmptyAndTrim(queueOverflow);
+            this.queueOverflow = ThrottleQueueDecisionHandler.REJECT.equals(queueOverflow) ? null : queueOverflow;
+        }
+
+        /**
+         * The name of a parameter whose value limits builds across all jobs in the category: builds with the same
+         * value of it count together towards {@link #getMaxConcurrentPerParamValue()}, whichever job they belong to.
+         */
+        @CheckForNull
+        public String getParamToCompare() {
+            return paramToCompare;
+        }
+
+        @DataBoundSetter
+        public void setParamToCompare(String paramToCompare) {
+            this.paramToCompare = Util.fixEmptyAndTrim(paramToCompare);
+        }
+
+        /**
+         * The number of builds in the category with the same value of {@link #getParamToCompare()} that may run at
+         * the same time, at least one.
+         */
+        public int getMaxConcurrentPerParamValue() {
+            return Math.max(maxConcurrentPerParamValue, 1);
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentPerParamValue(int maxConcurrentPerParamValue) {
+            this.maxConcurrentPerParamValue = Math.max(maxConcurrentPerParamValue, 0);
+        }
+
+        /**
+         * A regular expression; jobs whose full name matches it are in the category without listing it in a
+         * {@link ThrottleJobProperty}, see {@link CategoryMembership}.
+         */
+        @CheckForNull
+        public String getJobNamePattern() {
+            return jobNamePattern;
+        }
+
+        @DataBoundSetter
+        public void setJobNamePattern(String jobNamePattern) {
+            this.jobNamePattern = Util.fixEmptyAndTrim(jobNamePattern);
+            this.compiledJobNamePattern = null;
+        }
+
+        /**
+         * The full name of a folder; jobs anywhere inside it are in the category, see {@link CategoryMembership}.
+         */
+        @CheckForNull
+        public String getJobFolder() {
+            return jobFolder;
+        }
+
+        @DataBoundSetter
+        public void setJobFolder(String jobFolder) {
+            this.jobFolder = Util.fixEmptyAndTrim(jobFolder);
+        }
+
+        /**
+         * A label; projects whose label expression mentions it are in the category, see {@link CategoryMembership}.
+         */
+        @CheckForNull
+        public String getJobLabel() {
+            return jobLabel;
+        }
+
+        @DataBoundSetter
+        public void setJobLabel(String jobLabel) {
+            this.jobLabel = Util.fixEmptyAndTrim(jobLabel);
+        }
+
+        /**
+         * @return whether jobs can be in the category by name, folder or label.
+         */
+        public boolean isMatchingJobs() {
+            return jobNamePattern != null || jobFolder != null || jobLabel != null;
+        }
+
+        /**
+         * @param job the job.
+         * @return whether the job is in the category by name, folder or label.
+         */
+        boolean matchesJob(@NonNull Job<?, ?> job) {
+            String fullName = job.getFullName();
+            if (jobNamePattern != null) {
+                Pattern pattern = compiledJobNamePattern;
+                if (pattern == null) {
+                    try {
+                        pattern = Pattern.compile(jobNamePattern);
+                    } catch (PatternSyntaxException e) {
+                        LOGGER.log(Level.WARNING, "Invalid job name pattern in category " + categoryName, e);
+                        pattern = Pattern.compile("(?!)");
+                    }
+                    compiledJobNamePattern = pattern;
+                }
+                if (pattern.matcher(fullName).matches()) {
+                    return true;
+                }
+            }
+            if (jobFolder != null && fullName.startsWith(jobFolder + "/")) {
+                return true;
+            }
+            if (jobLabel != null && job instanceof AbstractProject<?, ?> project) {
+                Label label = project.getAssignedLabel();
+                if (label != null) {
+                    for (LabelAtom atom : label.listAtoms()) {
+                        if (jobLabel.equals(atom.getName())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
         @Extension
         public static class DescriptorImpl extends Descriptor<ThrottleCategory> {
             @Override
             public String getDisplayName() {
                 return "";
             }
+
+            public ListBoxModel doFillAdmissionOrderItems() {
+                ListBoxModel m = new ListBoxModel();
+                m.add(Messages.ThrottleCategory_AdmissionOrder_Queue(), CategoryAdmissionOrder.QUEUE);
+                m.add(Messages.ThrottleCategory_AdmissionOrder_Priority(), CategoryAdmissionOrder.PRIORITY);
+                m.add(Messages.ThrottleCategory_AdmissionOrder_ShortestFirst(), CategoryAdmissionOrder.SHORTEST_FIRST);
+                return m;
+            }
+
+            @SuppressWarnings({"lgtm[jenkins/csrf]", "lgtm[jenkins/no-permission-check]"})
+            public FormValidation doCheckJobNamePattern(@QueryParameter String value) {
+                if (Util.fixEmptyAndTrim(value) != null) {
+                    try {
+                        Pattern.compile(value.trim());
+                    } catch (PatternSyntaxException e) {
+                        return FormValidation.error(e.getDescription());
+                    }
+                }
+                return FormValidation.ok();
+            }
+
+            public ListBoxModel doFillQueueOverflowItems() {
+                ListBoxModel m = new ListBoxModel();
+                m.add(Messages.ThrottleCategory_QueueOverflow_Reject(), ThrottleQueueDecisionHandler.REJECT);
+                m.add(Messages.ThrottleCategory_QueueOverflow_Coalesce(), ThrottleQueueDecisionHandler.COALESCE);
+                m.add(Messages.ThrottleCategory_QueueOverflow_DropOldest(), ThrottleQueueDecisionHandler.DROP_OLDEST);
+                return m;
+            }
         }
     }
 
@@ -0,0 +1,100 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import java.util.List;
+import jenkins.model.Jenkins;
+
+/**
+ * A {@link LoadBalancer} that moves a throttled build to the candidate node running the fewest builds of the same
+ * categories, so that category builds spread across agents instead of piling up on the node the default consistent
+ * hashing prefers.
+ *
+ * <p>The balancer decorates whichever balancer was installed before it. It only changes the decision of that balancer
+ * for tasks in at least one category, consisting of a single work chunk, when another candidate node is strictly
+ * emptier. Occupancy comes from {@link CategoryOccupancy}, so ranking the candidates does not scan executors. The
+ * balancer is only installed while {@link ThrottleJobProperty.DescriptorImpl#isSpreadCategoryBuilds()} is enabled.
+ */
+public class ThrottleLoadBalancer extends LoadBalancer {
+
+    @NonNull
+    private final LoadBalancer delegate;
+
+    ThrottleLoadBalancer(@NonNull LoadBalancer delegate) {
+        this.delegate = delegate;
+    }
+
+    @NonNull
+    LoadBalancer getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    @CheckForNull
+    public Mapping map(@NonNull Queue.Task task, MappingWorksheet worksheet) {
+        Mapping mapping = delegate.map(task, worksheet);
+        if (mapping == null || worksheet.works.size() != 1) {
+            return mapping;
+        }
+        List<String> categories = ThrottleQueueTaskDispatcher.categoriesOf(task);
+        if (categories.isEmpty()) {
+            return mapping;
+        }
+
+        CategoryOccupancy occupancy = CategoryOccupancy.get();
+        ExecutorChunk proposed = mapping.assigned(0);
+        ExecutorChunk emptiest = proposed;
+        int emptiestCount = occupancy.onNode(categories, proposed.getName());
+        for (ExecutorChunk candidate : worksheet.works(0).applicableExecutorChunks()) {
+            int count = occupancy.onNode(categories, candidate.getName());
+            if (count < emptiestCount) {
+                emptiest = candidate;
+                emptiestCount = count;
+            }
+        }
+
+        if (emptiest != proposed) {
+            mapping.assign(0, emptiest);
+            if (!mapping.isCompletelyValid()) {
+                mapping.assign(0, proposed);
+            }
+        }
+        return mapping;
+    }
+
+    @Override
+    protected LoadBalancer sanitize() {
+        return this;
+    }
+
+    /**
+     * Install or remove the balancer on the Jenkins queue.
+     *
+     * @param enabled whether the balancer should be installed.
+     */
+    static void install(boolean enabled) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        Queue queue = jenkins.getQueue();
+        LoadBalancer loadBalancer = queue.getLoadBalancer();
+        if (enabled && !(loadBalancer instanceof ThrottleLoadBalancer)) {
+            queue.setLoadBalancer(new ThrottleLoadBalancer(loadBalancer));
+        } else if (!enabled && loadBalancer instanceof ThrottleLoadBalancer throttleLoadBalancer) {
+            queue.setLoadBalancer(throttleLoadBalancer.getDelegate());
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void init() {
+        install(ThrottleJobProperty.fetchDescriptor().isSpreadCategoryBuilds());
+    }
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.queue.QueueDecisionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Limits the number of queue items of categories with a
+ * {@link ThrottleJobProperty.ThrottleCategory#getMaxQueued()}, so that a saturated category does not keep collecting
+ * items that every {@code Queue.maintain()} has to check again.
+ *
+ * <p>Once a category has that many queue items, a new build of a project in the category is handled according to
+ * {@link ThrottleJobProperty.ThrottleCategory#getQueueOverflow()}:
+ *
+ * <ul>
+ *   <li>{@link #REJECT} does not schedule it.
+ *   <li>{@link #COALESCE} does not schedule it either. In addition, even below the limit or without one, a build is
+ *       not scheduled if a build of the same project with the same parameters is already queued, comparing only the
+ *       parameters listed in {@link ThrottleJobProperty#getParamsToCompare()} if there are any.
+ *   <li>{@link #DROP_OLDEST} cancels the oldest queued build of a project in the category to make room.
+ * </ul>
+ *
+ * <p>Only builds of projects in the category are affected: {@code node} blocks of Pipelines and
+ * matrix configurations count towards the limit, but are never rejected or cancelled, since that would fail the whole
+ * run.
+ */
+@Extension
+public class ThrottleQueueDecisionHandler extends QueueDecisionHandler {
+
+    /** Do not schedule new builds over the limit. */
+    static final String REJECT = "reject";
+
+    /** Fold new builds into queued builds with the same parameters, and reject the rest over the limit. */
+    static final String COALESCE = "coalesce";
+
+    /** Cancel the oldest queued build to make room for a new one. */
+    static final String DROP_OLDEST = "dropOldest";
+
+    @Override
+    public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+        if (!(p instanceof Job) || p instanceof MatrixConfiguration) {
+            return true;
+        }
+        ThrottleJobProperty tjp = ThrottleQueueTaskDispatcher.getThrottleJobProperty(p);
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (String catNm : ThrottleQueueTaskDispatcher.categoriesOf(p)) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(catNm);
+            if (category == null) {
+                continue;
+            }
+            String overflow = category.getQueueOverflow();
+            // Coalescing applies below the limit too, and without one.
+            if (COALESCE.equals(overflow) && isAlreadyQueued(p, tjp, actions)) {
+                LOGGER.log(Level.FINE, "Not scheduling {0}: a build with the same parameters is already queued", p);
+                return false;
+            }
+            if (category.getMaxQueued() <= 0 || QueuedCategories.count(catNm) < category.getMaxQueued()) {
+                continue;
+            }
+            if (DROP_OLDEST.equals(overflow) && cancelOldest(catNm)) {
+                continue;
+            }
+            LOGGER.log(Level.INFO, "Not scheduling {0}: category {1} already has {2} queued builds", new Object[] {
+                p.getFullDisplayName(), catNm, category.getMaxQueued()
+            });
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isAlreadyQueued(
+            Queue.Task p, @CheckForNull ThrottleJobProperty tjp, List<Action> actions) {
+        List<String> paramsToCompare = tjp != null ? tjp.getParamsToCompare() : Collections.emptyList();
+        List<ParameterValue> params = new ArrayList<>();
+        for (Action action : actions) {
+            if (action instanceof ParametersAction parametersAction) {
+                params.addAll(parametersAction.getParameters());
+            }
+        }
+        params = ThrottleQueueTaskDispatcher.doFilterParams(paramsToCompare, params);
+        for (Queue.Item item : Jenkins.get().getQueue().getItems(p)) {
+            ParametersAction parametersAction = item.getAction(ParametersAction.class);
+            List<ParameterValue> queuedParams =
+                    parametersAction != null ? parametersAction.getParameters() : new ArrayList<>();
+            queuedParams = ThrottleQueueTaskDispatcher.doFilterParams(paramsToCompare, queuedParams);
+            if (queuedParams.containsAll(params) && params.containsAll(queuedParams)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean cancelOldest(String catNm) {
+        QueuedCategories.Tracked oldest = null;
+        for (QueuedCategories.Tracked tracked : QueuedCategories.itemsIn(catNm)) {
+            if (tracked.task() instanceof Job
+                    && !(tracked.task() instanceof MatrixConfiguration)
+                    && (oldest == null || tracked.inQueueSince() < oldest.inQueueSince())) {
+                oldest = tracked;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        Queue queue = Jenkins.get().getQueue();
+        Queue.Item item = queue.getItem(oldest.id());
+        if (item == null || !queue.cancel(item)) {
+            return false;
+        }
+        LOGGER.log(Level.INFO, "Cancelled {0} to make room in category {1}", new Object[] {
+            item.task.getFullDisplayName(), catNm
+        });
+        return true;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleQueueDecisionHandler.class.getName());
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Queue;
+import hudson.model.queue.QueueSorter;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+
+/**
+ * A {@link QueueSorter} that moves buildable items whose throttle categories are saturated behind all others, so that
+ * {@code Queue.maintain()} reaches work that can start before it spends dispatcher checks on work that cannot.
+ *
+ * <p>The sorter decorates whichever sorter was installed before it and otherwise keeps that sorter's order. It is only
+ * installed while {@link ThrottleJobProperty.DescriptorImpl#isSortQueueByCapacity()} is enabled.
+ */
+public class ThrottleQueueSorter extends QueueSorter {
+
+    @CheckForNull
+    private final QueueSorter delegate;
+
+    ThrottleQueueSorter(@CheckForNull QueueSorter delegate) {
+        this.delegate = delegate;
+    }
+
+    @CheckForNull
+    QueueSorter getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+        CategoryOccupancy occupancy = CategoryOccupancy.get();
+        Map<Queue.BuildableItem, Boolean> saturated = new IdentityHashMap<>();
+        for (Queue.BuildableItem item : buildables) {
+            saturated.put(item, !occupancy.hasHeadroom(ThrottleQueueTaskDispatcher.categoriesOf(item.task)));
+        }
+        // List.sort is stable, so the delegate's order is kept within each group.
+        buildables.sort(Comparator.comparing(saturated::get));
+    }
+
+    /**
+     * Install or remove the sorter on the Jenkins queue.
+     *
+     * @param enabled whether the sorter should be installed.
+     */
+    static void install(boolean enabled) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        Queue queue = jenkins.getQueue();
+        QueueSorter sorter = queue.getSorter();
+        if (enabled && !(sorter instanceof ThrottleQueueSorter)) {
+            queue.setSorter(new ThrottleQueueSorter(sorter));
+        } else if (!enabled && sorter instanceof ThrottleQueueSorter throttleQueueSorter) {
+            queue.setSorter(throttleQueueSorter.getDelegate());
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void init() {
+        install(ThrottleJobProperty.fetchDescriptor().isSortQueueByCapacity());
+    }
+}
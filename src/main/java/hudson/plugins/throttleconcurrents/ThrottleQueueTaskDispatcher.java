@@ -19,13 +19,13 @@ import hudson.model.Run;
 import hudson.model.labels.LabelAtom;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
-import hudson.model.queue.SubTask;
 import hudson.model.queue.WorkUnit;
 import hudson.plugins.throttleconcurrents.pipeline.ThrottleStep;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +43,7 @@ import org.jenkinsci.plugins.workflow.graphanalysis.LinearBlockHoppingScanner;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
 import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
+import org.jvnet.localizer.Localizable;
 
 @Extension
 public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
@@ -65,21 +66,28 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     }
 
     private CauseOfBlockage canTakeImpl(Node node, Task task) {
-        final Jenkins jenkins = Jenkins.get();
         ThrottleJobProperty tjp = getThrottleJobProperty(task);
         List<String> pipelineCategories = categoriesForPipeline(task);
+        List<String> matchedCategories = CategoryMembership.categoriesOf(task);
 
         // Handle multi-configuration filters
-        if (!shouldBeThrottled(task, tjp) && pipelineCategories.isEmpty()) {
+        if (!shouldBeThrottled(task, tjp) && pipelineCategories.isEmpty() && matchedCategories.isEmpty()) {
             return null;
         }
 
-        if (!pipelineCategories.isEmpty() || (tjp != null && tjp.getThrottleEnabled())) {
-            CauseOfBlockage cause = canRunImpl(task, tjp, pipelineCategories);
+        if (!pipelineCategories.isEmpty()
+                || !matchedCategories.isEmpty()
+                || (tjp != null && tjp.getThrottleEnabled())) {
+            PendingTasks pendingTasks = PendingTasks.snapshot();
+            CauseOfBlockage cause = canRunImpl(task, tjp, pipelineCategories, pendingTasks);
             if (cause != null) {
                 return cause;
             }
-            if (tjp != null) {
+            cause = throttleCheckForThrottledBuildsOnNode(node, task, pendingTasks);
+            if (cause != null) {
+                return cause;
+            }
+            if (tjp != null && shouldBeThrottled(task, tjp)) {
                 if (tjp.getThrottleOption().equals("project")) {
                     if (tjp.getMaxConcurrentPerNode() > 0) {
                         int maxConcurrentPerNode = tjp.getMaxConcurrentPerNode();
@@ -92,96 +100,158 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
                         }
                     }
                 } else if (tjp.getThrottleOption().equals("category")) {
-                    return throttleCheckForCategoriesOnNode(node, jenkins, tjp.getCategories());
+                    return throttleCheckForCategoriesOnNode(node, categoriesOf(task), pendingTasks);
                 }
             } else if (!pipelineCategories.isEmpty()) {
-                return throttleCheckForCategoriesOnNode(node, jenkins, pipelineCategories);
+                return throttleCheckForCategoriesOnNode(node, pipelineCategories, pendingTasks);
+            }
+            if (!matchedCategories.isEmpty()) {
+                return throttleCheckForCategoriesOnNode(node, matchedCategories, pendingTasks);
             }
         }
 
         return null;
     }
 
-    private CauseOfBlockage throttleCheckForCategoriesOnNode(Node node, Jenkins jenkins, List<String> categories) {
-        // If the project is in one or more categories...
-        if (!categories.isEmpty()) {
-            for (String catNm : categories) {
-                // Quick check that catNm itself is a real string.
-                if (catNm != null && !catNm.equals("")) {
-                    List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                    ThrottleJobProperty.ThrottleCategory category =
-                            ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
-
-                    // Double check category itself isn't null
-                    if (category != null) {
-                        int runCount = 0;
-                        // Max concurrent per node for category
-                        int maxConcurrentPerNode = getMaxConcurrentPerNodeBasedOnMatchingLabels(
-                                node, category, category.getMaxConcurrentPerNode());
-                        if (maxConcurrentPerNode > 0) {
-                            for (Task catTask : categoryTasks) {
-                                if (jenkins.getQueue().isPending(catTask)) {
-                                    return CauseOfBlockage.fromMessage(
-                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                }
-                                runCount += buildsOfProjectOnNode(node, catTask);
-                            }
-                            Map<String, List<FlowNode>> throttledPipelines =
-                                    ThrottleJobProperty.getThrottledPipelineRunsForCategory(catNm);
-                            for (Map.Entry<String, List<FlowNode>> entry : throttledPipelines.entrySet()) {
-                                if (hasPendingPipelineForCategory(entry.getValue())) {
-                                    return CauseOfBlockage.fromMessage(
-                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                }
-                                Run<?, ?> r = Run.fromExternalizableId(entry.getKey());
-                                if (r != null) {
-                                    List<FlowNode> flowNodes = entry.getValue();
-                                    if (r.isBuilding()) {
-                                        runCount += pipelinesOnNode(node, r, flowNodes);
-                                    }
-                                }
-                            }
-                            // This would mean that there are as many or more builds currently running than are allowed.
-                            if (runCount >= maxConcurrentPerNode) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
-                            }
-                        }
-                    }
+    /**
+     * Check the limit on throttled builds per node across all categories, see
+     * {@link ThrottleJobProperty.DescriptorImpl#getMaxThrottledBuildsPerNode()}. Running builds are counted by
+     * {@link ThrottledBuildsPerNode} rather than by another scan of the node's executors.
+     */
+    private CauseOfBlockage throttleCheckForThrottledBuildsOnNode(Node node, Task task, PendingTasks pendingTasks) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        // Flyweight tasks do not take an executor, so they are neither limited nor counted.
+        if (task instanceof Queue.FlyweightTask || !descriptor.isThrottledBuildsPerNodeLimited()) {
+            return null;
+        }
+        int maxThrottledBuilds = getMaxConcurrentPerNodeBasedOnMatchingLabels(
+                node, descriptor.getNodeLabeledPairs(), descriptor.getMaxThrottledBuildsPerNode());
+        if (maxThrottledBuilds <= 0) {
+            return null;
+        }
+        if (pendingTasks.containsThrottledOn(node)) {
+            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+        }
+        int runCount = ThrottledBuildsPerNode.count(node.getNodeName());
+        if (runCount >= maxThrottledBuilds) {
+            return CauseOfBlockage.fromMessage(
+                    Messages._ThrottleQueueTaskDispatcher_MaxThrottledBuildsOnNode(runCount));
+        }
+        return null;
+    }
+
+    private CauseOfBlockage throttleCheckForCategoriesOnNode(
+            Node node, List<String> categories, PendingTasks pendingTasks) {
+        // If the project is in one or more categories, or their parents...
+        for (String catNm : ThrottleJobProperty.fetchDescriptor().withAncestors(categories)) {
+            // Quick check that catNm itself is a real string.
+            if (catNm != null && !catNm.equals("")) {
+                CauseOfBlockage cause = ThrottleDecisionCache.computeIfBlocked(
+                        catNm, node, () -> throttleCheckForCategoryOnNode(node, catNm, pendingTasks));
+                if (cause != null) {
+                    return cause;
                 }
             }
         }
         return null;
     }
 
-    private boolean hasPendingPipelineForCategory(List<FlowNode> flowNodes) {
-        for (Queue.BuildableItem pending : Jenkins.get().getQueue().getPendingItems()) {
-            if (isTaskThrottledPipeline(pending.task, flowNodes)) {
-                return true;
+    /**
+     * Check the per-node limit of a category. Builds of the category and, if other categories name it as their
+     * parent, of all its descendants count against it, each build once, as kept by {@link CategoryCounts}.
+     */
+    private CauseOfBlockage throttleCheckForCategoryOnNode(Node node, String catNm, PendingTasks pendingTasks) {
+        ThrottleJobProperty.ThrottleCategory category = ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
+
+        // Double check category itself isn't null
+        if (category != null) {
+            // Max concurrent per node for category
+            int maxConcurrentPerNode = getMaxConcurrentPerNodeBasedOnMatchingLabels(
+                    node, category.getNodeLabeledPairs(), category.getMaxConcurrentPerNode());
+            if (maxConcurrentPerNode > 0) {
+                if (pendingTasks.containsCategory(catNm)) {
+                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                }
+                int runCount = CategoryCounts.onNode(category, node.getNodeName());
+                // This would mean that there are as many or more builds currently running than are allowed.
+                if (runCount >= maxConcurrentPerNode) {
+                    return CauseOfBlockage.fromMessage(
+                            Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
+                }
             }
         }
-
-        return false;
+        return null;
     }
 
     @Override
     public @CheckForNull CauseOfBlockage canRun(Queue.Item item) {
+        CauseOfBlockage cause = canRunItem(item);
+        if (cause != null && item instanceof Queue.BlockedItem blocked) {
+            QueuedCategories.stillBlocked(blocked, cause);
+        }
+        return cause;
+    }
+
+    @CheckForNull
+    private CauseOfBlockage canRunItem(Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
         List<String> pipelineCategories = categoriesForPipeline(item.task);
 
-        if (!pipelineCategories.isEmpty() || (tjp != null && tjp.getThrottleEnabled())) {
-            if (tjp != null
-                    && tjp.isLimitOneJobWithMatchingParams()
-                    && isAnotherBuildWithSameParametersRunningOnAnyNode(item)) {
-                return CauseOfBlockage.fromMessage(
-                        Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters());
+        if (!pipelineCategories.isEmpty()
+                || (tjp != null && tjp.getThrottleEnabled())
+                || !CategoryMembership.categoriesOf(item.task).isEmpty()) {
+            if (tjp != null && tjp.isLimitOneJobWithMatchingParams()) {
+                List<ParameterValue> itemParams =
+                        doFilterParams(tjp.getParamsToCompare(), getParametersFromQueueItem(item));
+                int maxConcurrentPerParamValue = tjp.getMaxConcurrentPerParamValue();
+                int runCount = MatchingParameterCounts.count(item.task, itemParams);
+                if (runCount >= maxConcurrentPerParamValue) {
+                    return CauseOfBlockage.fromMessage(
+                            maxConcurrentPerParamValue == 1
+                                    ? Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters()
+                                    : Messages._ThrottleQueueTaskDispatcher_MaxWithMatchingParameters(runCount));
+                }
+            }
+            if (item.task instanceof Job) {
+                CauseOfBlockage cause = throttleCheckForCategoryParams(item);
+                if (cause != null) {
+                    return cause;
+                }
             }
             return canRun(item.task, tjp, pipelineCategories);
         }
         return null;
     }
 
+    /**
+     * Check the limits on builds sharing a parameter value across all jobs of the item's categories, see
+     * {@link ThrottleJobProperty.ThrottleCategory#getParamToCompare()}.
+     */
+    @CheckForNull
+    private CauseOfBlockage throttleCheckForCategoryParams(Queue.Item item) {
+        List<ParameterValue> itemParams = null;
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        for (String catNm : descriptor.withAncestors(categoriesOf(item.task))) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(catNm);
+            if (category == null || category.getParamToCompare() == null) {
+                continue;
+            }
+            if (itemParams == null) {
+                itemParams = getParametersFromQueueItem(item);
+            }
+            String value = MatchingParameterCounts.valueOf(itemParams, category.getParamToCompare());
+            if (value != null) {
+                int runCount = MatchingParameterCounts.countInCategory(catNm, value);
+                if (runCount >= category.getMaxConcurrentPerParamValue()) {
+                    return CauseOfBlockage.fromMessage(
+                            Messages._ThrottleQueueTaskDispatcher_MaxWithParameterValueInCategory(
+                                    runCount, category.getParamToCompare(), value, catNm));
+                }
+            }
+        }
+        return null;
+    }
+
     @NonNull
     private ThrottleMatrixProjectOptions getMatrixOptions(Task task) {
         ThrottleJobProperty tjp = getThrottleJobProperty(task);
@@ -193,7 +263,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return matrixOptions != null ? matrixOptions : ThrottleMatrixProjectOptions.DEFAULT;
     }
 
-    private boolean shouldBeThrottled(@NonNull Task task, @CheckForNull ThrottleJobProperty tjp) {
+    static boolean shouldBeThrottled(@NonNull Task task, @CheckForNull ThrottleJobProperty tjp) {
         if (tjp == null) {
             return false;
         }
@@ -219,24 +289,28 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
     private CauseOfBlockage canRun(Task task, ThrottleJobProperty tjp, List<String> pipelineCategories) {
         if (Jenkins.getAuthentication().equals(ACL.SYSTEM)) {
-            return canRunImpl(task, tjp, pipelineCategories);
+            return canRunImpl(task, tjp, pipelineCategories, PendingTasks.snapshot());
         }
 
         // Throttle-concurrent-builds requires READ permissions for all projects.
         try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
-            return canRunImpl(task, tjp, pipelineCategories);
+            return canRunImpl(task, tjp, pipelineCategories, PendingTasks.snapshot());
         }
     }
 
-    private CauseOfBlockage canRunImpl(Task task, ThrottleJobProperty tjp, List<String> pipelineCategories) {
-        final Jenkins jenkins = Jenkins.get();
-        if (!shouldBeThrottled(task, tjp) && pipelineCategories.isEmpty()) {
+    private CauseOfBlockage canRunImpl(
+            Task task, ThrottleJobProperty tjp, List<String> pipelineCategories, PendingTasks pendingTasks) {
+        List<String> matchedCategories = CategoryMembership.categoriesOf(task);
+        if (!shouldBeThrottled(task, tjp) && pipelineCategories.isEmpty() && matchedCategories.isEmpty()) {
             return null;
         }
-        if (jenkins.getQueue().isPending(task)) {
+        if (pendingTasks.contains(task)) {
             return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
         }
-        if (tjp != null) {
+        if (!pipelineCategories.isEmpty() && PausedBlocks.isResuming(task)) {
+            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_ResumingAfterPause());
+        }
+        if (tjp != null && shouldBeThrottled(task, tjp)) {
             if (tjp.getThrottleOption().equals("project")) {
                 if (tjp.getMaxConcurrentTotal() > 0) {
                     int maxConcurrentTotal = tjp.getMaxConcurrentTotal();
@@ -248,131 +322,92 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
                     }
                 }
             } else if (tjp.getThrottleOption().equals("category")) {
-                return throttleCheckForCategoriesAllNodes(jenkins, tjp.getCategories());
+                return throttleCheckForCategoriesAllNodes(task, categoriesOf(task), pendingTasks, false);
             }
         } else if (!pipelineCategories.isEmpty()) {
-            return throttleCheckForCategoriesAllNodes(jenkins, pipelineCategories);
+            return throttleCheckForCategoriesAllNodes(task, pipelineCategories, pendingTasks, true);
+        }
+        if (!matchedCategories.isEmpty()) {
+            return throttleCheckForCategoriesAllNodes(task, matchedCategories, pendingTasks, false);
         }
 
         return null;
     }
 
-    private CauseOfBlockage throttleCheckForCategoriesAllNodes(Jenkins jenkins, @NonNull List<String> categories) {
-        for (String catNm : categories) {
-            // Quick check that catNm itself is a real string.
-            if (catNm != null && !catNm.equals("")) {
-                List<Task> categoryTasks = ThrottleJobProperty.getCategoryTasks(catNm);
-
-                ThrottleJobProperty.ThrottleCategory category =
-                        ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
-
-                // Double check category itself isn't null
-                if (category != null) {
-                    if (category.getMaxConcurrentTotal() > 0) {
-                        int maxConcurrentTotal = category.getMaxConcurrentTotal();
-                        int totalRunCount = 0;
-
-                        for (Task catTask : categoryTasks) {
-                            if (jenkins.getQueue().isPending(catTask)) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                            }
-                            totalRunCount += buildsOfProjectOnAllNodes(catTask);
-                        }
-                        Map<String, List<FlowNode>> throttledPipelines =
-                                ThrottleJobProperty.getThrottledPipelineRunsForCategory(catNm);
-                        for (Map.Entry<String, List<FlowNode>> entry : throttledPipelines.entrySet()) {
-                            if (hasPendingPipelineForCategory(entry.getValue())) {
-                                return CauseOfBlockage.fromMessage(
-                                        Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                            }
-                            Run<?, ?> r = Run.fromExternalizableId(entry.getKey());
-                            if (r != null) {
-                                List<FlowNode> flowNodes = entry.getValue();
-                                if (r.isBuilding()) {
-                                    totalRunCount += pipelinesOnAllNodes(r, flowNodes);
-                                }
-                            }
-                        }
-
-                        if (totalRunCount >= maxConcurrentTotal) {
-                            return CauseOfBlockage.fromMessage(
-                                    Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
-                        }
-                    }
-                }
+    /**
+     * Drop the categories that count {@code throttle} blocks rather than executors. A pipeline task in such a category
+     * belongs to a block that already took its slot when it started.
+     */
+    @NonNull
+    private static List<String> withoutCountedBlocks(@NonNull List<String> pipelineCategories) {
+        List<String> categories = new ArrayList<>();
+        for (String catNm : pipelineCategories) {
+            if (!countsThrottleBlocks(catNm)) {
+                categories.add(catNm);
             }
         }
-        return null;
+        return categories;
     }
 
-    private boolean isAnotherBuildWithSameParametersRunningOnAnyNode(Queue.Item item) {
-        final Jenkins jenkins = Jenkins.get();
-        if (isAnotherBuildWithSameParametersRunningOnNode(jenkins, item)) {
-            return true;
-        }
+    private static boolean countsThrottleBlocks(@NonNull String catNm) {
+        ThrottleJobProperty.ThrottleCategory category = ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
+        return category != null && category.isCountThrottleBlocks();
+    }
 
-        for (Node node : jenkins.getNodes()) {
-            if (isAnotherBuildWithSameParametersRunningOnNode(node, item)) {
-                return true;
+    /**
+     * @param inBlock whether the task runs inside {@code throttle} blocks in these categories, in which case the
+     *     categories and ancestors that count blocks rather than executors are skipped.
+     */
+    private CauseOfBlockage throttleCheckForCategoriesAllNodes(
+            Task task, @NonNull List<String> categories, PendingTasks pendingTasks, boolean inBlock) {
+        for (String catNm : ThrottleJobProperty.fetchDescriptor().withAncestors(categories)) {
+            // Quick check that catNm itself is a real string.
+            if (catNm != null && !catNm.equals("") && !(inBlock && countsThrottleBlocks(catNm))) {
+                CauseOfBlockage cause = ThrottleDecisionCache.computeIfBlocked(
+                        catNm, null, () -> throttleCheckForCategoryAllNodes(catNm, pendingTasks));
+                if (cause != null) {
+                    return cause;
+                }
             }
         }
-        return false;
+        if (inBlock) {
+            categories = withoutCountedBlocks(categories);
+        }
+        // These depend on the queue and on the task, so they are not cached with the category decisions.
+        CauseOfBlockage cause = CategoryReservations.check(categories);
+        if (cause == null) {
+            cause = CategoryFairShare.check(task, categories);
+        }
+        if (cause == null) {
+            cause = CategoryAdmissionOrder.check(task, categories);
+        }
+        return cause;
     }
 
-    private boolean isAnotherBuildWithSameParametersRunningOnNode(Node node, Queue.Item item) {
-        ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
-        if (tjp == null) {
-            // If the property has been occasionally deleted by this call,
-            // it does not make sense to limit the throttling by parameter.
-            return false;
-        }
-        Computer computer = node.toComputer();
-        List<String> paramsToCompare = tjp.getParamsToCompare();
-        List<ParameterValue> itemParams = getParametersFromQueueItem(item);
-
-        if (paramsToCompare.size() > 0) {
-            itemParams = doFilterParams(paramsToCompare, itemParams);
-        }
-
-        // Look at all executors of specified node => computer,
-        // and what work units they are busy with (if any) - and
-        // whether one of these executing units is an instance
-        // of the queued item we were asked to compare to.
-        if (computer != null) {
-            for (Executor exec : computer.getAllExecutors()) {
-                // TODO: refactor into a nameEquals helper method
-                final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-                final SubTask parentTask = currentExecutable != null ? currentExecutable.getParent() : null;
-                if (currentExecutable != null
-                        && parentTask.getOwnerTask().getName().equals(item.task.getName())) {
-                    List<ParameterValue> executingUnitParams = getParametersFromWorkUnit(exec.getCurrentWorkUnit());
-                    executingUnitParams = doFilterParams(paramsToCompare, executingUnitParams);
-
-                    // An already executing work unit (of the same name) can have more
-                    // parameters than the queued item, e.g. due to env injection or by
-                    // unfiltered inheritance of "unsupported officially" from a caller.
-                    // Note that similar inheritance can also get more parameters into
-                    // the queued item than is visibly declared in its job configuration.
-                    // Normally the job configuration should declare all params that are
-                    // listed in its throttle configuration. Jenkins may forbid passing
-                    // undeclared parameters anyway, due to security concerns by default.
-                    // We check here whether the interesting (or all, if not filtered)
-                    // specified params of the queued item are same (glorified key=value
-                    // entries) as ones used in a running work unit, in any order.
-                    if (executingUnitParams.containsAll(itemParams)) {
-                        LOGGER.log(
-                                Level.FINE,
-                                "build (" + exec.getCurrentWorkUnit() + ") with identical parameters ("
-                                        + executingUnitParams
-                                        + ") is already running.");
-                        return true;
-                    }
+    /**
+     * Check the total limit of a category. Builds of the category and, if other categories name it as their parent,
+     * of all its descendants count against it, each build once, as kept by {@link CategoryCounts}. Whether
+     * {@code throttle} blocks count as blocks or by their executors, and whether paused blocks count at all, is up to
+     * the category being checked.
+     */
+    private CauseOfBlockage throttleCheckForCategoryAllNodes(String catNm, PendingTasks pendingTasks) {
+        ThrottleJobProperty.ThrottleCategory category = ThrottleJobProperty.fetchDescriptor().getCategoryByName(catNm);
+
+        // Double check category itself isn't null
+        if (category != null) {
+            if (category.getMaxConcurrentTotal() > 0) {
+                int maxConcurrentTotal = category.getMaxConcurrentTotal();
+                if (pendingTasks.containsCategory(catNm)) {
+                    return new CategoryBlockage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                }
+                int totalRunCount = CategoryCounts.total(category);
+
+                if (totalRunCount >= maxConcurrentTotal) {
+                    return new CategoryBlockage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
                 }
             }
         }
-
-        return false;
+        return null;
     }
 
     /**
@@ -381,7 +416,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
      * @param OriginalParams - a list of ParameterValue descendants whose name fields should match
      * @return a list of ParameterValue descendants whose name fields did match, entries copied from OriginalParams
      */
-    private List<ParameterValue> doFilterParams(List<String> params, List<ParameterValue> OriginalParams) {
+    static List<ParameterValue> doFilterParams(List<String> params, List<ParameterValue> OriginalParams) {
         if (params.isEmpty()) {
             return OriginalParams;
         }
@@ -432,8 +467,37 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return paramsList;
     }
 
+    /**
+     * Get the names of the categories a task is throttled in, either through its {@link ThrottleJobProperty}, by
+     * name, folder or label through {@link CategoryMembership}, or through the {@code throttle} block enclosing a
+     * {@link PlaceholderTask}.
+     *
+     * @param task the task.
+     * @return the category names, possibly empty.
+     */
     @NonNull
-    private List<String> categoriesForPipeline(Task task) {
+    static List<String> categoriesOf(@NonNull Task task) {
+        List<String> matchedCategories = CategoryMembership.categoriesOf(task);
+        ThrottleJobProperty tjp = getThrottleJobProperty(task);
+        if (tjp != null) {
+            if (shouldBeThrottled(task, tjp) && "category".equals(tjp.getThrottleOption())) {
+                if (matchedCategories.isEmpty()) {
+                    return tjp.getCategories();
+                }
+                Set<String> categories = new LinkedHashSet<>(tjp.getCategories());
+                categories.addAll(matchedCategories);
+                return new ArrayList<>(categories);
+            }
+            return matchedCategories;
+        }
+        if (!matchedCategories.isEmpty()) {
+            return matchedCategories;
+        }
+        return categoriesForPipeline(task);
+    }
+
+    @NonNull
+    static List<String> categoriesForPipeline(Task task) {
         // TODO avoid casting to PlaceholderTask; could task.node.id be replaced with task.affinityKey?
         if (task instanceof PlaceholderTask placeholderTask) {
             Queue.Executable ownerExecutable = task.getOwnerExecutable();
@@ -461,45 +525,20 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     }
 
     @CheckForNull
-    private ThrottleJobProperty getThrottleJobProperty(Task task) {
+    static ThrottleJobProperty getThrottleJobProperty(Task task) {
         if (task instanceof Job<?, ?> p) {
             if (task instanceof MatrixConfiguration) {
                 p = ((MatrixConfiguration) task).getParent();
             }
-            return p.getProperty(ThrottleJobProperty.class);
+            ThrottleJobProperty tjp = p.getProperty(ThrottleJobProperty.class);
+            return tjp != null ? tjp : ThrottleFolderProperty.inheritedBy(p);
         }
         return null;
     }
 
-    private int pipelinesOnNode(@NonNull Node node, @NonNull Run<?, ?> run, @NonNull List<FlowNode> flowNodes) {
-        int runCount = 0;
-        LOGGER.log(Level.FINE, "Checking for pipelines of {0} on node {1}", new Object[] {
-            run.getDisplayName(), node.getDisplayName()
-        });
-
-        Computer computer = node.toComputer();
-        if (computer != null) { // Not all nodes are certain to become computers, like nodes with 0 executors.
-            // Don't count flyweight tasks that might not consume an actual executor, unlike with builds.
-            for (Executor e : computer.getExecutors()) {
-                runCount += pipelinesOnExecutor(run, e, flowNodes);
-            }
-        }
-
-        return runCount;
-    }
-
-    private int pipelinesOnAllNodes(@NonNull Run<?, ?> run, @NonNull List<FlowNode> flowNodes) {
-        final Jenkins jenkins = Jenkins.get();
-        int totalRunCount = pipelinesOnNode(jenkins, run, flowNodes);
-
-        for (Node node : jenkins.getNodes()) {
-            totalRunCount += pipelinesOnNode(node, run, flowNodes);
-        }
-        return totalRunCount;
-    }
-
     private int buildsOfProjectOnNode(Node node, Task task) {
-        if (!shouldBeThrottled(task, getThrottleJobProperty(task))) {
+        if (!shouldBeThrottled(task, getThrottleJobProperty(task))
+                && CategoryMembership.categoriesOf(task).isEmpty()) {
             return 0;
         }
 
@@ -509,7 +548,8 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
     }
 
     private int buildsOfProjectOnAllNodes(Task task) {
-        if (!shouldBeThrottled(task, getThrottleJobProperty(task))) {
+        if (!shouldBeThrottled(task, getThrottleJobProperty(task))
+                && CategoryMembership.categoriesOf(task).isEmpty()) {
             return 0;
         }
 
@@ -584,47 +624,6 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return runCount;
     }
 
-    /**
-     * Get the count of currently executing {@link PlaceholderTask}s on a given {@link Executor} for a given {@link Run}
-     * and list of {@link FlowNode}s in that run that have been throttled.
-     *
-     * @param run The {@link Run} we care about.
-     * @param exec The {@link Executor} we're checking on.
-     * @param flowNodes The list of {@link FlowNode}s associated with that run that have been throttled with a particular
-     *                  category.
-     * @return 1 if there's something currently executing on that executor and it's of that run and one of the provided
-     * flow nodes, 0 otherwise.
-     */
-    private int pipelinesOnExecutor(@NonNull Run<?, ?> run, @NonNull Executor exec, @NonNull List<FlowNode> flowNodes) {
-        final Queue.Executable currentExecutable = exec.getCurrentExecutable();
-        if (currentExecutable != null) {
-            SubTask parent = currentExecutable.getParent();
-            if (parent instanceof Task) {
-                Queue.Executable ownerExecutable = parent.getOwnerExecutable();
-                if (ownerExecutable instanceof Run<?, ?> run2 && run.equals(run2)) {
-                    if (isTaskThrottledPipeline((Task) parent, flowNodes)) {
-                        return 1;
-                    }
-                }
-            }
-        }
-
-        return 0;
-    }
-
-    private boolean isTaskThrottledPipeline(Task origTask, List<FlowNode> flowNodes) {
-        if (origTask instanceof PlaceholderTask task) { // TODO as in categoriesForPipeline
-            try {
-                FlowNode firstThrottle = firstThrottleStartNode(task.getNode());
-                return firstThrottle != null && flowNodes.contains(firstThrottle);
-            } catch (IOException | InterruptedException e) {
-                // TODO: do something?
-            }
-        }
-
-        return false;
-    }
-
     /**
      * Given a {@link FlowNode}, find the {@link FlowNode} most directly enclosing this one that comes from a {@link ThrottleStep}.
      *
@@ -632,7 +631,7 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
      * @return The most immediate enclosing {@link FlowNode} of the inner one that is associated with {@link ThrottleStep}. May be null.
      */
     @CheckForNull
-    private FlowNode firstThrottleStartNode(@CheckForNull FlowNode inner) {
+    static FlowNode firstThrottleStartNode(@CheckForNull FlowNode inner) {
         if (inner != null) {
             LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
             scanner.setup(inner);
@@ -657,14 +656,13 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
     /**
      * @param node to compare labels with.
-     * @param category to compare labels with.
+     * @param nodeLabeledPairs the limits per node label, of a category or across categories.
      * @param maxConcurrentPerNode to return if node labels mismatch.
      * @return maximum concurrent number of builds per node based on matching labels, as an int.
      * @author marco.miller@ericsson.com
      */
     private int getMaxConcurrentPerNodeBasedOnMatchingLabels(
-            Node node, ThrottleJobProperty.ThrottleCategory category, int maxConcurrentPerNode) {
-        List<ThrottleJobProperty.NodeLabeledPair> nodeLabeledPairs = category.getNodeLabeledPairs();
+            Node node, List<ThrottleJobProperty.NodeLabeledPair> nodeLabeledPairs, int maxConcurrentPerNode) {
         int maxConcurrentPerNodeLabeledIfMatch = maxConcurrentPerNode;
         boolean nodeLabelsMatch = false;
         Set<LabelAtom> nodeLabels = node.getAssignedLabels();
@@ -692,5 +690,23 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return maxConcurrentPerNodeLabeledIfMatch;
     }
 
+    /**
+     * Blockage by the capacity of a category across all nodes, or by the order in which a category admits builds. An
+     * item blocked only by such causes could start as soon as its categories let it, see
+     * {@link QueuedCategories#countReady(String)}.
+     */
+    static final class CategoryBlockage extends CauseOfBlockage {
+        private final Localizable message;
+
+        CategoryBlockage(@NonNull Localizable message) {
+            this.message = message;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return message.toString();
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(ThrottleQueueTaskDispatcher.class.getName());
 }
@@ -0,0 +1,95 @@
+package hudson.plugins.throttleconcurrents;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.OneOffExecutor;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The number of throttled builds running on each node whatever their categories, which the dispatcher checks against
+ * {@link ThrottleJobProperty.DescriptorImpl#getMaxThrottledBuildsPerNode()} without scanning executors.
+ *
+ * <p>A build is counted when it leaves the queue on its executor, which happens under the queue lock, so the next
+ * maintenance already sees it. It is counted until the executor releases it, which also happens when no build could
+ * be created for it, e.g. because its job was disabled meanwhile, and for the {@code node} blocks of Pipelines when
+ * the block ends. A build counts if its job throttling is enabled or it is in any category, as in the dispatcher.
+ * Flyweight tasks take no executor, so they are not counted.
+ */
+final class ThrottledBuildsPerNode {
+
+    /** Map from the executors running throttled builds, to the names of their nodes. */
+    private static final ConcurrentMap<Executor, String> running = new ConcurrentHashMap<>();
+
+    /** Map from node names, to the number of throttled builds running on that node. */
+    private static final ConcurrentMap<String, Integer> counts = new ConcurrentHashMap<>();
+
+    private ThrottledBuildsPerNode() {}
+
+    /**
+     * @param nodeName the node name, as returned by {@link hudson.model.Node#getNodeName()}.
+     * @return the number of throttled builds running on the node.
+     */
+    static int count(@NonNull String nodeName) {
+        return counts.getOrDefault(nodeName, 0);
+    }
+
+    /**
+     * @param task a task.
+     * @return whether the task counts against the limit on throttled builds per node.
+     */
+    static boolean isThrottled(@NonNull Queue.Task task) {
+        return !(task instanceof Queue.FlyweightTask)
+                && (!ThrottleQueueTaskDispatcher.categoriesOf(task).isEmpty()
+                        || ThrottleQueueTaskDispatcher.shouldBeThrottled(
+                                task, ThrottleQueueTaskDispatcher.getThrottleJobProperty(task)));
+    }
+
+    private static void started(@NonNull Executor executor) {
+        String nodeName = executor.getOwner().getName();
+        if (running.putIfAbsent(executor, nodeName) == null) {
+            counts.merge(nodeName, 1, Integer::sum);
+        }
+    }
+
+    private static void completed(@NonNull Executor executor) {
+        String nodeName = running.remove(executor);
+        if (nodeName != null) {
+            counts.computeIfPresent(nodeName, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    @Extension
+    public static final class QueueListenerImpl extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled() || !isThrottled(li.task)) {
+                return;
+            }
+            // Items leave the queue on the thread of the executor that runs them.
+            Executor executor = Executor.currentExecutor();
+            if (executor == null || executor instanceof OneOffExecutor) {
+                return;
+            }
+            started(executor);
+        }
+    }
+
+    /** Forgets builds whose executors released them, whether or not a run was ever created for them. */
+    @Extension
+    public static final class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            completed(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            completed(executor);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package hudson.plugins.throttleconcurrents.pipeline;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.throttleconcurrents.QueueWakeUp;
+import hudson.plugins.throttleconcurrents.ThrottleJobProperty;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.StepNode;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Releases the categories of the enclosing {@code throttle} block before the block ends, so that waiting builds can
+ * use the capacity while the rest of the body runs unthrottled.
+ */
+public class ReleaseThrottleStep extends Step implements Serializable {
+
+    @DataBoundConstructor
+    public ReleaseThrottleStep() {}
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context);
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final class Execution extends SynchronousStepExecution<Void> {
+        Execution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            Run<?, ?> r = getContext().get(Run.class);
+            FlowNode flowNode = getContext().get(FlowNode.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+
+            FlowNode throttle = enclosingThrottleStartNode(flowNode);
+            if (throttle == null) {
+                throw new AbortException("releaseThrottle can only be used inside a throttle block");
+            }
+            List<String> released = ThrottleJobProperty.fetchDescriptor()
+                    .removeThrottledPipeline(r.getExternalizableId(), throttle.getId(), listener);
+            if (released.isEmpty()) {
+                listener.getLogger().println("The enclosing throttle block has already been released");
+            } else {
+                listener.getLogger().println("Released throttle categories: " + StringUtils.join(released, ", "));
+                QueueWakeUp.capacityReleased(released, null);
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @CheckForNull
+    private static FlowNode enclosingThrottleStartNode(FlowNode flowNode) {
+        for (BlockStartNode enclosing : flowNode.iterateEnclosingBlocks()) {
+            // Skip the start node of the body, which carries BodyInvocationAction.
+            if (enclosing instanceof StepNode stepNode && enclosing.getAction(BodyInvocationAction.class) == null) {
+                StepDescriptor desc = stepNode.getDescriptor();
+                if (desc instanceof ThrottleStep.DescriptorImpl) {
+                    return enclosing;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "releaseThrottle";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.ReleaseThrottleStep_DisplayName();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, FlowNode.class, TaskListener.class);
+        }
+    }
+}
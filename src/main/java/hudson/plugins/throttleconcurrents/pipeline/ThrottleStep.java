@@ -17,10 +17,15 @@ import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 public class ThrottleStep extends Step implements Serializable {
     private List<String> categories;
+    private boolean waitForPermit;
+    private int timeout;
+    private boolean tryOnly;
+    private int priority;
 
     @DataBoundConstructor
     public ThrottleStep(@NonNull List<String> categories) {
@@ -32,6 +37,65 @@ public class ThrottleStep extends Step implements Serializable {
         return categories;
     }
 
+    public boolean isWaitForPermit() {
+        return waitForPermit;
+    }
+
+    /**
+     * @param waitForPermit whether to wait for room in every category before running the body, instead of leaving
+     *     the wait to the {@code node} blocks inside it.
+     */
+    @DataBoundSetter
+    public void setWaitForPermit(boolean waitForPermit) {
+        this.waitForPermit = waitForPermit;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout how many seconds to wait for room in every category before giving up and skipping the body, or
+     *     0 to wait indefinitely. Implies {@link #setWaitForPermit}, and makes the step return whether it acquired.
+     */
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    public boolean isTryOnly() {
+        return tryOnly;
+    }
+
+    /**
+     * @param tryOnly whether to skip the body rather than wait if a category has no room right away. Makes the step
+     *     return whether it acquired.
+     */
+    @DataBoundSetter
+    public void setTryOnly(boolean tryOnly) {
+        this.tryOnly = tryOnly;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority the priority of the {@code node} blocks inside the step in categories that admit builds by
+     *     priority. Higher values go first.
+     */
+    @DataBoundSetter
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return whether the step returns if it acquired a slot in every category, rather than the result of its body.
+     */
+    boolean returnsAcquired() {
+        return tryOnly || timeout > 0;
+    }
+
     @Override
     public StepExecution start(StepContext context) throws Exception {
         return new ThrottleStepExecution(this, context);
@@ -4,21 +4,44 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.plugins.throttleconcurrents.CategoryPermits;
+import hudson.plugins.throttleconcurrents.QueueWakeUp;
 import hudson.plugins.throttleconcurrents.ThrottleJobProperty;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
-public class ThrottleStepExecution extends StepExecution {
+public class ThrottleStepExecution extends StepExecution implements CategoryPermits.Waiter {
     private final ThrottleStep step;
 
+    @CheckForNull
+    private String runId;
+
+    @CheckForNull
+    private String flowNodeId;
+
+    /** Whether the step is waiting in {@link CategoryPermits} before running its body. */
+    private volatile boolean waiting;
+
+    /** When to give up waiting, in milliseconds since the epoch, or 0 to wait indefinitely. */
+    private long deadline;
+
+    @CheckForNull
+    private transient ScheduledFuture<?> timeoutTask;
+
     public ThrottleStepExecution(@NonNull ThrottleStep step, StepContext context) {
         super(context);
         this.step = step;
@@ -71,26 +94,188 @@ public class ThrottleStepExecution extends StepExecution {
 
         ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
 
-        String runId = null;
-        String flowNodeId = null;
-
         if (r != null && flowNode != null) {
             runId = r.getExternalizableId();
             flowNodeId = flowNode.getId();
-            for (String category : validateCategories(descriptor, listener)) {
-                descriptor.addThrottledPipelineForCategory(runId, flowNodeId, category, listener);
+            List<String> categories = validateCategories(descriptor, listener);
+            if (step.isTryOnly()) {
+                waiting = true;
+                if (!CategoryPermits.tryAcquire(this)) {
+                    waiting = false;
+                    listener.getLogger()
+                            .println("No capacity in categories: " + StringUtils.join(categories, ", ")
+                                    + "; skipping the body");
+                    getContext().onSuccess(false);
+                    return true;
+                }
+                return false;
+            }
+            if (step.getTimeout() > 0 || step.isWaitForPermit() || countsThrottleBlocks(descriptor, categories)) {
+                waiting = true;
+                if (step.getTimeout() > 0) {
+                    deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(step.getTimeout());
+                }
+                if (!CategoryPermits.acquire(this)) {
+                    listener.getLogger()
+                            .println("Waiting for capacity in categories: " + StringUtils.join(categories, ", "));
+                    scheduleTimeout();
+                }
+                return false;
             }
+            descriptor.addThrottledPipeline(runId, flowNodeId, categories, listener);
         }
 
+        startBody();
+        return false;
+    }
+
+    private static boolean countsThrottleBlocks(
+            ThrottleJobProperty.DescriptorImpl descriptor, List<String> categories) {
+        // A parent that counts blocks counts the blocks of its descendants too.
+        for (String c : descriptor.withAncestors(categories)) {
+            ThrottleJobProperty.ThrottleCategory category = descriptor.getCategoryByName(c);
+            if (category != null && category.isCountThrottleBlocks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startBody() {
+        Callback callback = new Callback(runId, flowNodeId, getCategories());
         getContext()
                 .newBodyInvoker()
-                .withCallback(new Callback(runId, flowNodeId, getCategories()))
+                .withCallback(step.returnsAcquired() ? new AcquiredCallback(callback) : callback)
                 .start();
-        return false;
+    }
+
+    private void scheduleTimeout() {
+        if (deadline > 0) {
+            long delay = Math.max(deadline - System.currentTimeMillis(), 0);
+            timeoutTask = Timer.get().schedule(this::timedOut, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void timedOut() {
+        if (waiting && CategoryPermits.cancel(this)) {
+            waiting = false;
+            try {
+                getContext()
+                        .get(TaskListener.class)
+                        .getLogger()
+                        .println("Timed out waiting for capacity in categories: "
+                                + StringUtils.join(getCategories(), ", ") + "; skipping the body");
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.FINE, "Could not log the timeout", e);
+            }
+            getContext().onSuccess(false);
+        }
+    }
+
+    @Override
+    public void register() {
+        if (runId != null && flowNodeId != null) {
+            ThrottleJobProperty.fetchDescriptor().addThrottledPipeline(runId, flowNodeId, getCategories(), null);
+        }
+    }
+
+    @Override
+    public void granted() {
+        waiting = false;
+        ScheduledFuture<?> task = timeoutTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        startBody();
+    }
+
+    @Override
+    @CheckForNull
+    public String getRunId() {
+        return runId;
+    }
+
+    @Override
+    public void deadlocked(@NonNull String description) {
+        try {
+            getContext().get(TaskListener.class).getLogger().println(description);
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.FINE, "Could not log the deadlock", e);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        // Waiters are only kept in memory, so queue up again after a restart.
+        if (waiting && !CategoryPermits.acquire(this)) {
+            scheduleTimeout();
+        }
     }
 
     @Override
-    public void stop(Throwable cause) throws Exception {}
+    public void stop(Throwable cause) throws Exception {
+        if (waiting && CategoryPermits.cancel(this)) {
+            waiting = false;
+            getContext().onFailure(cause);
+        }
+        // Otherwise the body is stopped along with the step, and its callback releases the capacity once it has
+        // unwound. Releasing it any earlier would let another block start while this body is still running. If the
+        // body never unwinds, e.g. after a hard kill, the capacity is released when the run completes.
+    }
+
+    private static void release(
+            @CheckForNull String runId,
+            @CheckForNull String flowNodeId,
+            @NonNull List<String> categories,
+            @CheckForNull TaskListener listener) {
+        if (runId != null && flowNodeId != null) {
+            for (String category : categories) {
+                ThrottleJobProperty.fetchDescriptor()
+                        .removeThrottledPipelineForCategory(runId, flowNodeId, category, listener);
+            }
+            QueueWakeUp.capacityReleased(categories, null);
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        if (waiting) {
+            return "waiting for capacity in categories: " + StringUtils.join(getCategories(), ", ");
+        }
+        return super.getStatus();
+    }
+
+    /** Releases like {@link Callback}, but makes the step return {@code true} instead of the result of its body. */
+    private static final class AcquiredCallback extends BodyExecutionCallback {
+        private final Callback callback;
+
+        private static final long serialVersionUID = 1;
+
+        AcquiredCallback(@NonNull Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            try {
+                callback.finished(context);
+            } catch (Exception e) {
+                context.onFailure(e);
+                return;
+            }
+            context.onSuccess(true);
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            try {
+                callback.finished(context);
+            } catch (Exception e) {
+                t.addSuppressed(e);
+            }
+            context.onFailure(t);
+        }
+    }
 
     private static final class Callback extends BodyExecutionCallback.TailCall {
         @CheckForNull
@@ -111,13 +296,9 @@ public class ThrottleStepExecution extends StepExecution {
 
         @Override
         protected void finished(StepContext context) throws Exception {
-            if (runId != null && flowNodeId != null) {
-                for (String category : categories) {
-                    ThrottleJobProperty.fetchDescriptor()
-                            .removeThrottledPipelineForCategory(
-                                    runId, flowNodeId, category, context.get(TaskListener.class));
-                }
-            }
+            release(runId, flowNodeId, categories, context.get(TaskListener.class));
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleStepExecution.class.getName());
 }
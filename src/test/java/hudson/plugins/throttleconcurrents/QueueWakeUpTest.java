@@ -0,0 +1,69 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class QueueWakeUpTest {
+
+    @Test
+    void capacityReleasedSchedulesMaintenance(JenkinsRule j) throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("cat", 0, 1, null));
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(Label.get("nowhere"));
+        p.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList("cat"),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false, // limitOneJobWithMatchingParams
+                null, // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        j.jenkins.getQueue().schedule2(p, 0);
+        j.jenkins.getQueue().maintain();
+        assertTrue(QueuedCategories.count("cat") > 0);
+
+        // Configuration changes clear the cached decisions, which must not hide the queued item.
+        ThrottleDecisionCache.invalidateAll();
+        CountingDispatcher dispatcher = j.jenkins.getExtensionList(QueueTaskDispatcher.class)
+                .get(CountingDispatcher.class);
+        // Line up with the regular maintenance, so that the next one is a full period away.
+        int before = dispatcher.checks.get();
+        while (dispatcher.checks.get() == before) {
+            Thread.sleep(10);
+        }
+        before = dispatcher.checks.get();
+        QueueWakeUp.capacityReleased(Collections.singletonList("cat"), null);
+
+        // Well within the 5 second period of the regular maintenance.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (dispatcher.checks.get() == before && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(dispatcher.checks.get() > before);
+    }
+
+    @TestExtension("capacityReleasedSchedulesMaintenance")
+    public static class CountingDispatcher extends QueueTaskDispatcher {
+        private final AtomicInteger checks = new AtomicInteger();
+
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            checks.incrementAndGet();
+            return null;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package hudson.plugins.throttleconcurrents;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.List;
@@ -60,4 +61,22 @@ class ThrottleCategoryTest {
                 actualMax,
                 "maxConcurrentPerNodeLabeled " + actualMax + " does not match expected " + expectedMax);
     }
+
+    @Test
+    void shouldDeriveCategoriesFromTemplate() {
+        ThrottleJobProperty.ThrottleCategory template =
+                new ThrottleJobProperty.ThrottleCategory("deploy-*", 1, 2, null);
+        template.setParent("deploy");
+        assertTrue(template.isTemplate());
+        assertTrue(template.matches("deploy-eu"));
+        assertFalse(template.matches("build-eu"));
+        assertFalse(template.matches("deploy.eu"));
+
+        ThrottleJobProperty.ThrottleCategory derived = template.derive("deploy-eu");
+        assertEquals("deploy-eu", derived.getCategoryName());
+        assertEquals(2, derived.getMaxConcurrentTotal());
+        assertEquals("deploy", derived.getParent());
+        assertTrue(derived.isDerived());
+        assertFalse(derived.isTemplate());
+    }
 }
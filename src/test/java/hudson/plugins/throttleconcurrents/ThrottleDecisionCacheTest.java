@@ -0,0 +1,141 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SequenceLock;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ThrottleDecisionCacheTest {
+
+    private static final CauseOfBlockage BLOCKED =
+            CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(1));
+
+    private JenkinsRule j;
+
+    private final AtomicInteger checks = new AtomicInteger();
+
+    private final Supplier<CauseOfBlockage> blocked = () -> {
+        checks.incrementAndGet();
+        return BLOCKED;
+    };
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        ThrottleDecisionCache.invalidateAll();
+    }
+
+    @Test
+    void blockedDecisionIsReused() {
+        assertFalse(ThrottleDecisionCache.hasBlocked("cat"));
+        assertSame(BLOCKED, ThrottleDecisionCache.computeIfBlocked("cat", null, blocked));
+        assertSame(BLOCKED, ThrottleDecisionCache.computeIfBlocked("cat", null, blocked));
+        assertEquals(1, checks.get());
+        assertTrue(ThrottleDecisionCache.hasBlocked("cat"));
+
+        // An admitted item changes the outcome for the next one, so room is never cached.
+        Supplier<CauseOfBlockage> room = () -> {
+            checks.incrementAndGet();
+            return null;
+        };
+        ThrottleDecisionCache.categoryChanged("cat");
+        assertNull(ThrottleDecisionCache.computeIfBlocked("cat", null, room));
+        assertNull(ThrottleDecisionCache.computeIfBlocked("cat", null, room));
+        assertEquals(3, checks.get());
+        assertFalse(ThrottleDecisionCache.hasBlocked("cat"));
+    }
+
+    @Test
+    void blockedDecisionIsDroppedOnCategoryChange() {
+        ThrottleJobProperty.ThrottleCategory parent = new ThrottleJobProperty.ThrottleCategory("parent", 0, 1, null);
+        ThrottleJobProperty.ThrottleCategory child = new ThrottleJobProperty.ThrottleCategory("child", 0, 1, null);
+        child.setParent("parent");
+        TestUtil.setupCategories(parent, child);
+
+        ThrottleDecisionCache.computeIfBlocked("parent", null, blocked);
+        ThrottleDecisionCache.computeIfBlocked("other", null, blocked);
+        assertEquals(2, checks.get());
+
+        // A change in a child category also changes the capacity of its parent, but not of unrelated categories.
+        ThrottleDecisionCache.categoryChanged("child");
+        ThrottleDecisionCache.computeIfBlocked("parent", null, blocked);
+        ThrottleDecisionCache.computeIfBlocked("other", null, blocked);
+        assertEquals(3, checks.get());
+
+        ThrottleDecisionCache.invalidateAll();
+        ThrottleDecisionCache.computeIfBlocked("other", null, blocked);
+        assertEquals(4, checks.get());
+    }
+
+    @Test
+    void blockedDecisionIsDroppedOnQueueChange() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(Label.get("nowhere"));
+        Queue.Item item = j.jenkins.getQueue().schedule2(p, 0).getItem();
+        assertNotNull(item);
+
+        ThrottleDecisionCache.computeIfBlocked("cat", null, blocked);
+        ThrottleDecisionCache.computeIfBlocked("cat", null, blocked);
+        assertEquals(1, checks.get());
+
+        // A BuildPending decision may be stale once any item has left the queue.
+        j.jenkins.getQueue().cancel(item);
+        ThrottleDecisionCache.computeIfBlocked("cat", null, blocked);
+        assertEquals(2, checks.get());
+    }
+
+    @Test
+    void blockedDecisionIsDroppedWhenExecutorFreesUp() throws Exception {
+        Node agent = j.createOnlineSlave();
+        Computer computer = agent.toComputer();
+        SequenceLock seq = new SequenceLock();
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedNode(agent);
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException {
+                seq.phase(0);
+                seq.phase(2);
+                return true;
+            }
+        });
+        FreeStyleBuild b = p.scheduleBuild2(0).waitForStart();
+        seq.phase(1);
+
+        ThrottleDecisionCache.computeIfBlocked("cat", agent, blocked);
+        ThrottleDecisionCache.computeIfBlocked("cat", agent, blocked);
+        assertEquals(1, checks.get());
+
+        // The build is not in any category, so only the busy executor count tells that capacity may be free.
+        seq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        while (computer.countBusy() > 0) {
+            Thread.sleep(10);
+        }
+        ThrottleDecisionCache.computeIfBlocked("cat", agent, blocked);
+        assertEquals(2, checks.get());
+    }
+}
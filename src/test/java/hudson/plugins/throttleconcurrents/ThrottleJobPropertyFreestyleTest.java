@@ -28,6 +28,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasItem;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.cloudbees.hudson.plugins.folder.Folder;
@@ -36,13 +38,19 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Queue;
 import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.slaves.Cloud;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -56,7 +64,9 @@ import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.SequenceLock;
+import org.jvnet.hudson.test.SleepBuilder;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 /** Tests that {@link ThrottleJobProperty} actually works for builds. */
@@ -270,6 +280,458 @@ class ThrottleJobPropertyFreestyleTest {
         j.assertBuildStatusSuccess(j.waitForCompletion(thirdJobFirstRun));
     }
 
+    @Test
+    void parentCategory() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory parent = new ThrottleJobProperty.ThrottleCategory("parent", 0, 1, null);
+        ThrottleJobProperty.ThrottleCategory firstChild =
+                new ThrottleJobProperty.ThrottleCategory("first-child", 0, 2, null);
+        firstChild.setParent("parent");
+        ThrottleJobProperty.ThrottleCategory secondChild =
+                new ThrottleJobProperty.ThrottleCategory("second-child", 0, 2, null);
+        secondChild.setParent("parent");
+        TestUtil.setupCategories(parent, firstChild, secondChild);
+
+        FreeStyleProject firstJob = j.createFreeStyleProject();
+        firstJob.setAssignedNode(agent);
+        firstJob.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList("first-child"),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        SequenceLock firstJobSeq = new SequenceLock();
+        firstJob.getBuildersList().add(new SequenceLockBuilder(firstJobSeq));
+
+        FreeStyleBuild firstJobFirstRun = firstJob.scheduleBuild2(0).waitForStart();
+        firstJobSeq.phase(1);
+
+        FreeStyleProject secondJob = j.createFreeStyleProject();
+        secondJob.setAssignedNode(agent);
+        secondJob.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList("second-child"),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        SequenceLock secondJobSeq = new SequenceLock();
+        secondJob.getBuildersList().add(new SequenceLockBuilder(secondJobSeq));
+
+        QueueTaskFuture<FreeStyleBuild> secondJobFirstRunFuture = secondJob.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertFalse(j.jenkins.getQueue().isEmpty());
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(secondJob);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(1)
+                        .toString()));
+        assertEquals(1, agent.toComputer().countBusy());
+
+        firstJobSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstJobFirstRun));
+
+        FreeStyleBuild secondJobFirstRun = secondJobFirstRunFuture.waitForStart();
+        secondJobSeq.phase(1);
+        j.jenkins.getQueue().maintain();
+        assertTrue(j.jenkins.getQueue().isEmpty());
+        assertEquals(1, agent.toComputer().countBusy());
+
+        secondJobSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondJobFirstRun));
+    }
+
+    @Test
+    void guaranteedMinimum() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory pool = new ThrottleJobProperty.ThrottleCategory("pool", 0, 2, null);
+        ThrottleJobProperty.ThrottleCategory first = new ThrottleJobProperty.ThrottleCategory("first", 0, 2, null);
+        first.setParent("pool");
+        first.setGuaranteedMinimum(1);
+        ThrottleJobProperty.ThrottleCategory second = new ThrottleJobProperty.ThrottleCategory("second", 0, 2, null);
+        second.setParent("pool");
+        second.setGuaranteedMinimum(1);
+        TestUtil.setupCategories(pool, first, second);
+        assertEquals(List.of(first, second), ThrottleJobProperty.fetchDescriptor().getChildren("pool"));
+
+        // With nothing queued in the second category, its guarantee is lent to the first.
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "first", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+        SequenceLock secondSeq = new SequenceLock();
+        FreeStyleBuild secondRun = createCategoryJob(agent, "first", secondSeq).scheduleBuild2(0).waitForStart();
+        secondSeq.phase(1);
+
+        SequenceLock otherSeq = new SequenceLock();
+        FreeStyleProject otherJob = createCategoryJob(agent, "second", otherSeq);
+        QueueTaskFuture<FreeStyleBuild> otherRunFuture = otherJob.scheduleBuild2(0);
+        SequenceLock thirdSeq = new SequenceLock();
+        FreeStyleProject thirdJob = createCategoryJob(agent, "first", thirdSeq);
+        QueueTaskFuture<FreeStyleBuild> thirdRunFuture = thirdJob.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+        assertEquals(2, agent.toComputer().countBusy());
+
+        // Once a borrowed build finishes, the freed capacity goes to the second category rather than the first.
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild otherRun = otherRunFuture.waitForStart();
+        otherSeq.phase(1);
+        j.jenkins.getQueue().maintain();
+        assertFalse(j.jenkins.getQueue().isEmpty());
+        assertTrue(thirdJob.isInQueue());
+
+        secondSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        FreeStyleBuild thirdRun = thirdRunFuture.waitForStart();
+        thirdSeq.phase(1);
+
+        otherSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(otherRun));
+        thirdSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(thirdRun));
+    }
+
+    @Test
+    void guaranteeOfSiblingThatCannotStartIsLent() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory pool = new ThrottleJobProperty.ThrottleCategory("pool", 0, 2, null);
+        ThrottleJobProperty.ThrottleCategory first = new ThrottleJobProperty.ThrottleCategory("first", 0, 2, null);
+        first.setParent("pool");
+        first.setGuaranteedMinimum(1);
+        ThrottleJobProperty.ThrottleCategory second = new ThrottleJobProperty.ThrottleCategory("second", 0, 2, null);
+        second.setParent("pool");
+        second.setGuaranteedMinimum(1);
+        TestUtil.setupCategories(pool, first, second);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "first", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        // The second category has a queued build, but on a label that no node has.
+        FreeStyleProject stuckJob = createCategoryJob(agent, "second");
+        stuckJob.setAssignedLabel(Label.get("nowhere"));
+        assertNotNull(stuckJob.scheduleBuild2(0));
+        j.jenkins.getQueue().maintain();
+
+        // That build could not use the guarantee of the second category, so it is lent to the first.
+        SequenceLock secondSeq = new SequenceLock();
+        FreeStyleBuild secondRun = createCategoryJob(agent, "first", secondSeq).scheduleBuild2(0).waitForStart();
+        secondSeq.phase(1);
+        assertEquals(2, agent.toComputer().countBusy());
+        assertTrue(stuckJob.isInQueue());
+
+        j.jenkins.getQueue().cancel(stuckJob);
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        secondSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void fairShare() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory shared = new ThrottleJobProperty.ThrottleCategory("shared", 0, 2, null);
+        shared.setFairShare(true);
+        TestUtil.setupCategories(shared);
+
+        SequenceLock firstRunSeq = new SequenceLock();
+        SequenceLock secondRunSeq = new SequenceLock();
+        SequenceLock thirdRunSeq = new SequenceLock();
+        FreeStyleProject busyJob = createCategoryJob(agent, "shared", firstRunSeq, secondRunSeq, thirdRunSeq);
+        busyJob.setConcurrentBuild(true);
+        FreeStyleBuild firstRun = busyJob.scheduleBuild2(0).waitForStart();
+        firstRunSeq.phase(1);
+        FreeStyleBuild secondRun = busyJob.scheduleBuild2(0).waitForStart();
+        secondRunSeq.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> thirdRunFuture = busyJob.scheduleBuild2(0);
+        SequenceLock otherSeq = new SequenceLock();
+        FreeStyleProject otherJob = createCategoryJob(agent, "shared", otherSeq);
+        QueueTaskFuture<FreeStyleBuild> otherRunFuture = otherJob.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+        assertEquals(2, QueuedCategories.countReady("shared"));
+        assertEquals(1, QueuedCategories.countReady("shared", otherJob.getFullName()));
+
+        // The freed slot goes to the job that is not running anything, even though the busy job asked first.
+        firstRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild otherRun = otherRunFuture.waitForStart();
+        otherSeq.phase(1);
+        j.jenkins.getQueue().maintain();
+        assertTrue(busyJob.isInQueue());
+
+        secondRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        FreeStyleBuild thirdRun = thirdRunFuture.waitForStart();
+        thirdRunSeq.phase(1);
+
+        otherSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(otherRun));
+        thirdRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(thirdRun));
+    }
+
+    @Test
+    void fairShareIgnoresJobsThatCannotStart() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory shared = new ThrottleJobProperty.ThrottleCategory("shared", 0, 2, null);
+        shared.setFairShare(true);
+        TestUtil.setupCategories(shared);
+
+        SequenceLock firstRunSeq = new SequenceLock();
+        SequenceLock secondRunSeq = new SequenceLock();
+        FreeStyleProject busyJob = createCategoryJob(agent, "shared", firstRunSeq, secondRunSeq);
+        busyJob.setConcurrentBuild(true);
+        FreeStyleBuild firstRun = busyJob.scheduleBuild2(0).waitForStart();
+        firstRunSeq.phase(1);
+
+        // The other job is running fewer builds, but its queued build is on a label that no node has.
+        FreeStyleProject stuckJob = createCategoryJob(agent, "shared");
+        stuckJob.setAssignedLabel(Label.get("nowhere"));
+        assertNotNull(stuckJob.scheduleBuild2(0));
+        j.jenkins.getQueue().maintain();
+        assertEquals(0, QueuedCategories.countReady("shared"));
+
+        FreeStyleBuild secondRun = busyJob.scheduleBuild2(0).waitForStart();
+        secondRunSeq.phase(1);
+        assertTrue(stuckJob.isInQueue());
+
+        j.jenkins.getQueue().cancel(stuckJob);
+        firstRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        secondRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void priority() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory ordered = new ThrottleJobProperty.ThrottleCategory("ordered", 0, 1, null);
+        ordered.setAdmissionOrder(CategoryAdmissionOrder.PRIORITY);
+        ordered.setAgingMinutes(0);
+        TestUtil.setupCategories(ordered);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "ordered", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        SequenceLock lowSeq = new SequenceLock();
+        FreeStyleProject lowJob = createCategoryJob(agent, "ordered", lowSeq);
+        QueueTaskFuture<FreeStyleBuild> lowRunFuture = lowJob.scheduleBuild2(0);
+        SequenceLock highSeq = new SequenceLock();
+        FreeStyleProject highJob = createCategoryJob(agent, "ordered", highSeq);
+        highJob.getProperty(ThrottleJobProperty.class).setPriority(10);
+        QueueTaskFuture<FreeStyleBuild> highRunFuture = highJob.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+        assertEquals(Set.of(0, 10), QueuedCategories.readyByPriority("ordered").keySet());
+
+        // The high-priority build goes first, although the low-priority one was queued earlier.
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild highRun = highRunFuture.waitForStart();
+        highSeq.phase(1);
+        j.jenkins.getQueue().maintain();
+        assertTrue(lowJob.isInQueue());
+
+        highSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(highRun));
+        FreeStyleBuild lowRun = lowRunFuture.waitForStart();
+        lowSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(lowRun));
+    }
+
+    @Test
+    void priorityIgnoresBuildsThatCannotStart() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory ordered = new ThrottleJobProperty.ThrottleCategory("ordered", 0, 1, null);
+        ordered.setAdmissionOrder(CategoryAdmissionOrder.PRIORITY);
+        ordered.setAgingMinutes(0);
+        TestUtil.setupCategories(ordered);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "ordered", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        SequenceLock lowSeq = new SequenceLock();
+        FreeStyleProject lowJob = createCategoryJob(agent, "ordered", lowSeq);
+        QueueTaskFuture<FreeStyleBuild> lowRunFuture = lowJob.scheduleBuild2(0);
+        FreeStyleProject highJob = createCategoryJob(agent, "ordered");
+        highJob.setAssignedLabel(Label.get("nowhere"));
+        highJob.getProperty(ThrottleJobProperty.class).setPriority(10);
+        assertNotNull(highJob.scheduleBuild2(0));
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+
+        // The high-priority build is on a label that no node has, so the freed slot goes to the low-priority one.
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild lowRun = lowRunFuture.waitForStart();
+        assertTrue(highJob.isInQueue());
+
+        j.jenkins.getQueue().cancel(highJob);
+        lowSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(lowRun));
+    }
+
+    @Test
+    void shortestFirst() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory ordered = new ThrottleJobProperty.ThrottleCategory("ordered", 0, 1, null);
+        ordered.setAdmissionOrder(CategoryAdmissionOrder.SHORTEST_FIRST);
+        ordered.setAgingMinutes(0);
+        TestUtil.setupCategories(ordered);
+
+        // Give both jobs a build history, so that they have an estimated duration.
+        FreeStyleProject longJob = createCategoryJob(agent, "ordered");
+        longJob.getBuildersList().add(new SleepBuilder(1000));
+        j.buildAndAssertSuccess(longJob);
+        SequenceLock longSeq = new SequenceLock();
+        longJob.getBuildersList().add(new SequenceLockBuilder(new SequenceLock(), longSeq));
+        FreeStyleProject shortJob = createCategoryJob(agent, "ordered");
+        j.buildAndAssertSuccess(shortJob);
+        SequenceLock shortSeq = new SequenceLock();
+        shortJob.getBuildersList().add(new SequenceLockBuilder(new SequenceLock(), shortSeq));
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "ordered", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> longRunFuture = longJob.scheduleBuild2(0);
+        QueueTaskFuture<FreeStyleBuild> shortRunFuture = shortJob.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+
+        // The short build goes first, although the long one was queued earlier.
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild shortRun = shortRunFuture.waitForStart();
+        shortSeq.phase(1);
+        j.jenkins.getQueue().maintain();
+        assertTrue(longJob.isInQueue());
+
+        shortSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(shortRun));
+        FreeStyleBuild longRun = longRunFuture.waitForStart();
+        longSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(longRun));
+    }
+
+    @Test
+    void shortestFirstIgnoresBuildsThatCannotStart() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory ordered = new ThrottleJobProperty.ThrottleCategory("ordered", 0, 1, null);
+        ordered.setAdmissionOrder(CategoryAdmissionOrder.SHORTEST_FIRST);
+        ordered.setAgingMinutes(0);
+        TestUtil.setupCategories(ordered);
+
+        // Give both jobs a build history, so that they have an estimated duration.
+        FreeStyleProject longJob = createCategoryJob(agent, "ordered");
+        longJob.getBuildersList().add(new SleepBuilder(1000));
+        j.buildAndAssertSuccess(longJob);
+        SequenceLock longSeq = new SequenceLock();
+        longJob.getBuildersList().add(new SequenceLockBuilder(new SequenceLock(), longSeq));
+        FreeStyleProject shortJob = createCategoryJob(agent, "ordered");
+        j.buildAndAssertSuccess(shortJob);
+        shortJob.setAssignedLabel(Label.get("nowhere"));
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "ordered", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> longRunFuture = longJob.scheduleBuild2(0);
+        assertNotNull(shortJob.scheduleBuild2(0));
+        j.jenkins.getQueue().maintain();
+        assertEquals(2, j.jenkins.getQueue().getItems().length);
+
+        // The short build is on a label that no node has, so the freed slot goes to the long one.
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild longRun = longRunFuture.waitForStart();
+        assertTrue(shortJob.isInQueue());
+
+        j.jenkins.getQueue().cancel(shortJob);
+        longSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(longRun));
+    }
+
+    @Test
+    void maxQueued() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory capped = new ThrottleJobProperty.ThrottleCategory("capped", 0, 1, null);
+        capped.setMaxQueued(1);
+        TestUtil.setupCategories(capped);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "capped", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        FreeStyleProject queuedJob = createCategoryJob(agent, "capped");
+        assertNotNull(queuedJob.scheduleBuild2(0));
+        FreeStyleProject rejectedJob = createCategoryJob(agent, "capped");
+        assertNull(rejectedJob.scheduleBuild2(0));
+        assertEquals(1, j.jenkins.getQueue().getItems().length);
+
+        capped.setQueueOverflow(ThrottleQueueDecisionHandler.DROP_OLDEST);
+        FreeStyleProject newerJob = createCategoryJob(agent, "capped");
+        QueueTaskFuture<FreeStyleBuild> newerRunFuture = newerJob.scheduleBuild2(0);
+        assertNotNull(newerRunFuture);
+        assertFalse(queuedJob.isInQueue());
+        assertTrue(newerJob.isInQueue());
+
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        j.assertBuildStatusSuccess(newerRunFuture);
+    }
+
+    @Test
+    void coalesceWithoutMaxQueued() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory coalesced =
+                new ThrottleJobProperty.ThrottleCategory("coalesced", 0, 1, null);
+        coalesced.setQueueOverflow(ThrottleQueueDecisionHandler.COALESCE);
+        TestUtil.setupCategories(coalesced);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleBuild firstRun = createCategoryJob(agent, "coalesced", firstSeq).scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedNode(agent);
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", "foo", ""), new StringParameterDefinition("BAR", "bar", "")));
+        project.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList("coalesced"),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                true, // limitOneJobWithMatchingParams
+                "FOO", // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        assertNotNull(project.scheduleBuild2(
+                0, new ParametersAction(new StringParameterValue("FOO", "a"), new StringParameterValue("BAR", "1"))));
+
+        // Only FOO is compared, so a build that only differs in BAR is folded into the queued one.
+        assertNull(project.scheduleBuild2(
+                0, new ParametersAction(new StringParameterValue("FOO", "a"), new StringParameterValue("BAR", "2"))));
+        assertNotNull(project.scheduleBuild2(
+                0, new ParametersAction(new StringParameterValue("FOO", "b"), new StringParameterValue("BAR", "1"))));
+        assertEquals(2, j.jenkins.getQueue().getItems(project).size());
+
+        j.jenkins.getQueue().clear();
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+    }
+
     @Test
     void limitOneJobWithMatchingParams() throws Exception {
         Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
@@ -322,6 +784,240 @@ class ThrottleJobPropertyFreestyleTest {
         j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
     }
 
+    @Test
+    void limitOneJobWithMatchingParamsMatchesRunningBuildWithMoreParams() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedNode(agent);
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", "foo", ""), new StringParameterDefinition("BAR", "bar", "")));
+        project.setConcurrentBuild(true);
+        project.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.emptyList(),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_PROJECT, // throttleOption
+                true, // limitOneJobWithMatchingParams
+                null, // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        SequenceLock firstRunSeq = new SequenceLock();
+        SequenceLock secondRunSeq = new SequenceLock();
+        project.getBuildersList().add(new SequenceLockBuilder(firstRunSeq, secondRunSeq));
+
+        FreeStyleBuild firstRun = project.scheduleBuild2(
+                        0,
+                        new ParametersAction(
+                                new StringParameterValue("FOO", "a"), new StringParameterValue("BAR", "b")))
+                .waitForStart();
+        firstRunSeq.phase(1);
+
+        // The running build has all the parameters of the queued one, and more.
+        QueueTaskFuture<FreeStyleBuild> secondRunFuture =
+                project.scheduleBuild2(0, new ParametersAction(new StringParameterValue("FOO", "a")));
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(project);
+        assertNotNull(queuedItem);
+        assertThat(
+                TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage()),
+                hasItem(Messages._ThrottleQueueTaskDispatcher_OnlyOneWithMatchingParameters()
+                        .toString()));
+
+        firstRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild secondRun = secondRunFuture.waitForStart();
+        secondRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void maxConcurrentPerParamValue() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, null);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedNode(agent);
+        ParametersDefinitionProperty pdp = new ParametersDefinitionProperty(
+                new StringParameterDefinition("ENVIRONMENT", "staging", ""),
+                new StringParameterDefinition("BAR", "bar", ""));
+        project.addProperty(pdp);
+        project.setConcurrentBuild(true);
+        ThrottleJobProperty tjp = new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.emptyList(),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_PROJECT, // throttleOption
+                true,
+                "ENVIRONMENT",
+                ThrottleMatrixProjectOptions.DEFAULT);
+        tjp.setMaxConcurrentPerParamValue(2);
+        project.addProperty(tjp);
+        SequenceLock firstRunSeq = new SequenceLock();
+        SequenceLock secondRunSeq = new SequenceLock();
+        SequenceLock thirdRunSeq = new SequenceLock();
+        project.getBuildersList().add(new SequenceLockBuilder(firstRunSeq, secondRunSeq, thirdRunSeq));
+
+        FreeStyleBuild firstRun = project.scheduleBuild2(0).waitForStart();
+        firstRunSeq.phase(1);
+        FreeStyleBuild secondRun = project.scheduleBuild2(0).waitForStart();
+        secondRunSeq.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> thirdRunFuture = project.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(project);
+        assertNotNull(queuedItem);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxWithMatchingParameters(2)
+                        .toString()));
+        assertEquals(2, agent.toComputer().countBusy());
+
+        firstRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+
+        FreeStyleBuild thirdRun = thirdRunFuture.waitForStart();
+        thirdRunSeq.phase(1);
+        assertEquals(2, agent.toComputer().countBusy());
+        secondRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        thirdRunSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(thirdRun));
+    }
+
+    @Test
+    void paramToCompareAcrossJobs() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory deploy = new ThrottleJobProperty.ThrottleCategory("deploy", 0, 0, null);
+        deploy.setParamToCompare("TARGET_CLUSTER");
+        TestUtil.setupCategories(deploy);
+
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleProject firstJob = createCategoryJob(agent, "deploy", firstSeq);
+        firstJob.addProperty(
+                new ParametersDefinitionProperty(new StringParameterDefinition("TARGET_CLUSTER", "east", "")));
+        FreeStyleBuild firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        SequenceLock sameSeq = new SequenceLock();
+        FreeStyleProject sameJob = createCategoryJob(agent, "deploy", sameSeq);
+        sameJob.addProperty(
+                new ParametersDefinitionProperty(new StringParameterDefinition("TARGET_CLUSTER", "east", "")));
+        QueueTaskFuture<FreeStyleBuild> sameRunFuture = sameJob.scheduleBuild2(0);
+        SequenceLock otherSeq = new SequenceLock();
+        FreeStyleProject otherJob = createCategoryJob(agent, "deploy", otherSeq);
+        otherJob.addProperty(
+                new ParametersDefinitionProperty(new StringParameterDefinition("TARGET_CLUSTER", "west", "")));
+        FreeStyleBuild otherRun = otherJob.scheduleBuild2(0).waitForStart();
+        otherSeq.phase(1);
+
+        // A different job with the same cluster waits, while another cluster is free.
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(sameJob);
+        assertNotNull(queuedItem);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxWithParameterValueInCategory(
+                                1, "TARGET_CLUSTER", "east", "deploy")
+                        .toString()));
+
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild sameRun = sameRunFuture.waitForStart();
+        sameSeq.phase(1);
+
+        otherSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(otherRun));
+        sameSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(sameRun));
+    }
+
+    @Test
+    void jobNamePattern() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory matched = new ThrottleJobProperty.ThrottleCategory("matched", 0, 1, null);
+        matched.setJobNamePattern("deploy-.*");
+        TestUtil.setupCategories(matched);
+
+        // None of these jobs are configured to use the category.
+        SequenceLock firstSeq = new SequenceLock();
+        FreeStyleProject firstJob = j.createFreeStyleProject("deploy-first");
+        firstJob.setAssignedNode(agent);
+        firstJob.getBuildersList().add(new SequenceLockBuilder(firstSeq));
+        FreeStyleBuild firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+
+        FreeStyleProject secondJob = j.createFreeStyleProject("deploy-second");
+        secondJob.setAssignedNode(agent);
+        QueueTaskFuture<FreeStyleBuild> secondRunFuture = secondJob.scheduleBuild2(0);
+        FreeStyleProject otherJob = j.createFreeStyleProject("other");
+        otherJob.setAssignedNode(agent);
+        j.assertBuildStatusSuccess(otherJob.scheduleBuild2(0));
+
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(secondJob);
+        assertNotNull(queuedItem);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(1).toString()));
+
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        j.assertBuildStatusSuccess(secondRunFuture);
+    }
+
+    @Test
+    void jobFolderAndJobLabel() throws Exception {
+        ThrottleJobProperty.ThrottleCategory byFolder =
+                new ThrottleJobProperty.ThrottleCategory("by-folder", 0, 1, null);
+        byFolder.setJobFolder("team");
+        ThrottleJobProperty.ThrottleCategory byLabel = new ThrottleJobProperty.ThrottleCategory("by-label", 0, 1, null);
+        byLabel.setJobLabel("deploy");
+        TestUtil.setupCategories(byFolder, byLabel);
+
+        Folder team = j.createProject(Folder.class, "team");
+        FreeStyleProject inFolder = team.createProject(FreeStyleProject.class, "p");
+        FreeStyleProject labeled = j.createFreeStyleProject("labeled");
+        labeled.setAssignedLabel(Label.parseExpression("deploy && linux"));
+        FreeStyleProject other = j.createFreeStyleProject("team-other");
+        other.setAssignedLabel(Label.get("deployment"));
+
+        assertEquals(Collections.singletonList("by-folder"), CategoryMembership.categoriesOf(inFolder));
+        assertEquals(Collections.singletonList("by-label"), CategoryMembership.categoriesOf(labeled));
+        assertTrue(CategoryMembership.categoriesOf(other).isEmpty());
+        assertEquals(Collections.singletonList(inFolder), ThrottleJobProperty.getCategoryTasks("by-folder"));
+        assertEquals(Collections.singletonList(labeled), ThrottleJobProperty.getCategoryTasks("by-label"));
+    }
+
+    @Test
+    void categoryMembershipFollowsRenameAndMove() throws Exception {
+        ThrottleJobProperty.ThrottleCategory byName = new ThrottleJobProperty.ThrottleCategory("by-name", 0, 1, null);
+        byName.setJobNamePattern("deploy-.*");
+        ThrottleJobProperty.ThrottleCategory byFolder =
+                new ThrottleJobProperty.ThrottleCategory("by-folder", 0, 1, null);
+        byFolder.setJobFolder("team");
+        TestUtil.setupCategories(byName, byFolder);
+
+        Folder team = j.createProject(Folder.class, "team");
+        FreeStyleProject p = j.createFreeStyleProject("build-p");
+        // Fill the caches before the job changes location.
+        assertTrue(CategoryMembership.categoriesOf(p).isEmpty());
+        assertTrue(ThrottleJobProperty.getCategoryTasks("by-name").isEmpty());
+        assertTrue(ThrottleJobProperty.getCategoryTasks("by-folder").isEmpty());
+
+        p.renameTo("deploy-p");
+        assertEquals(Collections.singletonList("by-name"), CategoryMembership.categoriesOf(p));
+        assertEquals(Collections.singletonList(p), ThrottleJobProperty.getCategoryTasks("by-name"));
+
+        p = Items.move(p, team);
+        assertEquals(Collections.singletonList("by-folder"), CategoryMembership.categoriesOf(p));
+        assertEquals(Collections.singletonList(p), ThrottleJobProperty.getCategoryTasks("by-folder"));
+        assertTrue(ThrottleJobProperty.getCategoryTasks("by-name").isEmpty());
+    }
+
     @Issue("JENKINS-25326")
     @Test
     void testThrottlingWithCategoryInFolder() throws Exception {
@@ -387,6 +1083,311 @@ class ThrottleJobPropertyFreestyleTest {
         j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
     }
 
+    @Test
+    void testThrottlingInheritedFromFolder() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
+
+        Folder folder = j.createProject(Folder.class, "folder");
+        folder.getProperties()
+                .add(new ThrottleFolderProperty(
+                        null, // maxConcurrentPerNode
+                        null, // maxConcurrentTotal
+                        Collections.singletonList(TestUtil.ONE_PER_NODE.getCategoryName()),
+                        TestUtil.THROTTLE_OPTION_CATEGORY));
+        Folder subfolder = folder.createProject(Folder.class, "subfolder");
+
+        FreeStyleProject p1 = folder.createProject(FreeStyleProject.class, "p1");
+        SequenceLock seq1 = new SequenceLock();
+        p1.setAssignedNode(agent);
+        p1.getBuildersList().add(new SequenceLockBuilder(seq1));
+
+        FreeStyleProject p2 = subfolder.createProject(FreeStyleProject.class, "p2");
+        SequenceLock seq2 = new SequenceLock();
+        p2.setAssignedNode(agent);
+        p2.getBuildersList().add(new SequenceLockBuilder(seq2));
+
+        FreeStyleBuild b1 = p1.scheduleBuild2(0).waitForStart();
+        seq1.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> b2future = p2.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        assertFalse(j.jenkins.getQueue().isEmpty());
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(p2);
+        assertNotNull(queuedItem);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(1)
+                        .toString()));
+        assertEquals(1, agent.toComputer().countBusy());
+
+        seq1.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+
+        FreeStyleBuild secondRun = b2future.waitForStart();
+        seq2.phase(1);
+        seq2.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void testProjectThrottlingInheritedFromFolder() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, null);
+
+        Folder folder = j.createProject(Folder.class, "folder");
+        folder.getProperties()
+                .add(new ThrottleFolderProperty(
+                        null, // maxConcurrentPerNode
+                        1, // maxConcurrentTotal
+                        null, // categories
+                        TestUtil.THROTTLE_OPTION_PROJECT));
+
+        // Each job is throttled on its own, as with a job property.
+        FreeStyleProject p1 = folder.createProject(FreeStyleProject.class, "p1");
+        p1.setAssignedNode(agent);
+        p1.setConcurrentBuild(true);
+        SequenceLock firstSeq = new SequenceLock();
+        SequenceLock secondSeq = new SequenceLock();
+        p1.getBuildersList().add(new SequenceLockBuilder(firstSeq, secondSeq));
+        FreeStyleProject p2 = folder.createProject(FreeStyleProject.class, "p2");
+        p2.setAssignedNode(agent);
+
+        FreeStyleBuild firstRun = p1.scheduleBuild2(0).waitForStart();
+        firstSeq.phase(1);
+        j.assertBuildStatusSuccess(p2.scheduleBuild2(0));
+
+        QueueTaskFuture<FreeStyleBuild> secondRunFuture = p1.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(p1);
+        assertNotNull(queuedItem);
+        assertThat(
+                TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage()),
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(1).toString()));
+
+        firstSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        FreeStyleBuild secondRun = secondRunFuture.waitForStart();
+        secondSeq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void folderSaveKeepsCachesUnlessPropertyChanges() throws Exception {
+        Folder folder = j.createProject(Folder.class, "folder");
+        folder.getProperties().add(new ThrottleFolderProperty(null, 1, null, TestUtil.THROTTLE_OPTION_PROJECT));
+        CauseOfBlockage blocked =
+                CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(1));
+        ThrottleDecisionCache.computeIfBlocked("cat", null, () -> blocked);
+        assertTrue(ThrottleDecisionCache.hasBlocked("cat"));
+
+        // E.g. a multibranch scan.
+        folder.save();
+        assertTrue(ThrottleDecisionCache.hasBlocked("cat"));
+
+        folder.getProperties().replace(new ThrottleFolderProperty(null, 2, null, TestUtil.THROTTLE_OPTION_PROJECT));
+        assertFalse(ThrottleDecisionCache.hasBlocked("cat"));
+    }
+
+    @Test
+    void testMaxThrottledBuildsPerNodeAcrossCategories() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE, TestUtil.OTHER_ONE_PER_NODE);
+        ThrottleJobProperty.fetchDescriptor().setMaxThrottledBuildsPerNode(1);
+
+        SequenceLock seq1 = new SequenceLock();
+        FreeStyleProject p1 = createCategoryJob(agent, TestUtil.ONE_PER_NODE.getCategoryName(), seq1);
+        SequenceLock seq2 = new SequenceLock();
+        FreeStyleProject p2 = createCategoryJob(agent, TestUtil.OTHER_ONE_PER_NODE.getCategoryName(), seq2);
+
+        FreeStyleBuild b1 = p1.scheduleBuild2(0).waitForStart();
+        seq1.phase(1);
+
+        QueueTaskFuture<FreeStyleBuild> b2future = p2.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+        Queue.Item queuedItem = j.jenkins.getQueue().getItem(p2);
+        assertNotNull(queuedItem);
+        Set<String> blockageReasons = TestUtil.getBlockageReasons(queuedItem.getCauseOfBlockage());
+        assertThat(
+                blockageReasons,
+                hasItem(Messages._ThrottleQueueTaskDispatcher_MaxThrottledBuildsOnNode(1)
+                        .toString()));
+        assertEquals(1, agent.toComputer().countBusy());
+
+        seq1.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+
+        FreeStyleBuild b2 = b2future.waitForStart();
+        seq2.phase(1);
+        seq2.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+    }
+
+    @Test
+    void testMaxThrottledBuildsPerNodeIsCountedPerNode() throws Exception {
+        Node firstAgent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+        Node secondAgent = TestUtil.setupAgent(j, secondAgentTmp, agents, null, 2, null);
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE, TestUtil.OTHER_ONE_PER_NODE);
+        ThrottleJobProperty.fetchDescriptor().setMaxThrottledBuildsPerNode(1);
+
+        SequenceLock seq1 = new SequenceLock();
+        FreeStyleProject p1 = createCategoryJob(firstAgent, TestUtil.ONE_PER_NODE.getCategoryName(), seq1);
+        SequenceLock seq2 = new SequenceLock();
+        FreeStyleProject p2 = createCategoryJob(secondAgent, TestUtil.OTHER_ONE_PER_NODE.getCategoryName(), seq2);
+
+        // A throttled build on one node does not hold back a build on another.
+        FreeStyleBuild b1 = p1.scheduleBuild2(0).waitForStart();
+        seq1.phase(1);
+        FreeStyleBuild b2 = p2.scheduleBuild2(0).waitForStart();
+        seq2.phase(1);
+        assertEquals(1, ThrottledBuildsPerNode.count(firstAgent.getNodeName()));
+        assertEquals(1, ThrottledBuildsPerNode.count(secondAgent.getNodeName()));
+
+        seq1.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        waitUntilIdle(firstAgent);
+        assertEquals(0, ThrottledBuildsPerNode.count(firstAgent.getNodeName()));
+        seq2.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        waitUntilIdle(secondAgent);
+        assertEquals(0, ThrottledBuildsPerNode.count(secondAgent.getNodeName()));
+    }
+
+    @Test
+    void testMaxThrottledBuildsPerNodeWhenNoBuildIsCreated() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+        TestUtil.setupCategories(TestUtil.ONE_PER_NODE, TestUtil.OTHER_ONE_PER_NODE);
+        ThrottleJobProperty.fetchDescriptor().setMaxThrottledBuildsPerNode(1);
+
+        NoBuildProject vanishing = j.createProject(NoBuildProject.class, "vanishing");
+        vanishing.setAssignedNode(agent);
+        vanishing.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(TestUtil.ONE_PER_NODE.getCategoryName()),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+
+        // The item leaves the queue on an executor of the agent, which then gets no build to run.
+        Queue.Item item = j.jenkins.getQueue().schedule2(vanishing, 0).getItem();
+        assertNotNull(item);
+        while (!(j.jenkins.getQueue().getItem(item.getId()) instanceof Queue.LeftItem)) {
+            Thread.sleep(10);
+        }
+        waitUntilIdle(agent);
+        assertEquals(0, ThrottledBuildsPerNode.count(agent.getNodeName()));
+
+        // So the agent is not held at its limit by a build that never ran.
+        FreeStyleProject p = createCategoryJob(agent, TestUtil.OTHER_ONE_PER_NODE.getCategoryName());
+        j.buildAndAssertSuccess(p);
+    }
+
+    @Test
+    void testCategoryCountsPerLevel() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, null);
+        ThrottleJobProperty.ThrottleCategory parent = new ThrottleJobProperty.ThrottleCategory("parent", 0, 2, null);
+        ThrottleJobProperty.ThrottleCategory first = new ThrottleJobProperty.ThrottleCategory("first", 0, 0, null);
+        first.setParent("parent");
+        ThrottleJobProperty.ThrottleCategory second = new ThrottleJobProperty.ThrottleCategory("second", 0, 0, null);
+        second.setParent("parent");
+        TestUtil.setupCategories(parent, first, second);
+
+        SequenceLock seq1 = new SequenceLock();
+        FreeStyleProject p1 = createCategoryJob(agent, "first", seq1);
+        SequenceLock seq2 = new SequenceLock();
+        FreeStyleProject p2 = createCategoryJob(agent, "second", seq2);
+
+        // Each build counts at its own level and once at the parent, on the node it runs on.
+        FreeStyleBuild b1 = p1.scheduleBuild2(0).waitForStart();
+        seq1.phase(1);
+        FreeStyleBuild b2 = p2.scheduleBuild2(0).waitForStart();
+        seq2.phase(1);
+        assertEquals(1, CategoryCounts.jobBuilds("first"));
+        assertEquals(1, CategoryCounts.jobBuilds("second"));
+        assertEquals(2, CategoryCounts.jobBuilds("parent"));
+        assertEquals(2, CategoryCounts.onNode(parent, agent.getNodeName()));
+        assertEquals(0, CategoryCounts.onNode(parent, j.jenkins.getNodeName()));
+
+        seq1.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        waitUntilIdle(agent, 1);
+        assertEquals(0, CategoryCounts.jobBuilds("first"));
+        assertEquals(1, CategoryCounts.jobBuilds("parent"));
+        seq2.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        waitUntilIdle(agent);
+        assertEquals(0, CategoryCounts.jobBuilds("parent"));
+    }
+
+    @Test
+    void testCloudProvisioningVetoedWhenAllItemsThrottled() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 1, null);
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("cloud", 0, 2, null));
+
+        SequenceLock seq = new SequenceLock();
+        FreeStyleProject running = createCategoryJob(agent, "cloud", seq);
+        FreeStyleBuild b = running.scheduleBuild2(0).waitForStart();
+        seq.phase(1);
+
+        // Queue a build for a label only a cloud could provide, while the category still has room.
+        Label cloudLabel = Label.get("from-cloud");
+        FreeStyleProject queued = createCategoryJob(agent, "cloud");
+        queued.setAssignedLabel(cloudLabel);
+        queued.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+
+        Cloud cloud = new Cloud("test-cloud") {};
+        Cloud.CloudState state = new Cloud.CloudState(cloudLabel, 0);
+        ThrottleCloudProvisioningListener listener = new ThrottleCloudProvisioningListener();
+        // Hold the queue lock, so that the item stays buildable while the category fills up.
+        Queue.withLock(() -> {
+            assertEquals(1, j.jenkins.getQueue().getBuildableItems().size());
+            assertNull(listener.canProvision(cloud, state, 1));
+
+            TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("cloud", 0, 1, null));
+            CauseOfBlockage veto = listener.canProvision(cloud, state, 1);
+            assertNotNull(veto);
+            assertEquals(
+                    Messages._ThrottleCloudProvisioningListener_AllItemsThrottled(1)
+                            .toString(),
+                    veto.getShortDescription());
+        });
+
+        seq.done();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+        j.jenkins.getQueue().clear();
+    }
+
+    /** Waits until the executors of the node have released their work, which happens after their builds complete. */
+    private static void waitUntilIdle(Node node) throws InterruptedException {
+        waitUntilIdle(node, 0);
+    }
+
+    private static void waitUntilIdle(Node node, int busy) throws InterruptedException {
+        while (node.toComputer().countBusy() > busy) {
+            Thread.sleep(10);
+        }
+    }
+
+    private FreeStyleProject createCategoryJob(Node node, String category, SequenceLock... seq) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedNode(node);
+        project.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(category),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false,
+                null,
+                ThrottleMatrixProjectOptions.DEFAULT));
+        project.getBuildersList().add(new SequenceLockBuilder(seq));
+        return project;
+    }
+
     private static class SequenceLockBuilder extends TestBuilder {
 
         private final List<SequenceLock> sequenceLocks;
@@ -407,4 +1408,30 @@ class ThrottleJobPropertyFreestyleTest {
             return true;
         }
     }
+
+    /** A job whose executable is never created, as when it is disabled or deleted after an executor took its item. */
+    public static class NoBuildProject extends FreeStyleProject {
+
+        public NoBuildProject(ItemGroup<?> parent, String name) {
+            super(parent, name);
+        }
+
+        @Override
+        public FreeStyleBuild createExecutable() {
+            return null;
+        }
+
+        @TestExtension("testMaxThrottledBuildsPerNodeWhenNoBuildIsCreated")
+        public static class DescriptorImpl extends FreeStyleProject.DescriptorImpl {
+
+            public DescriptorImpl() {
+                super(NoBuildProject.class);
+            }
+
+            @Override
+            public NoBuildProject newInstance(ItemGroup parent, String name) {
+                return new NoBuildProject(parent, name);
+            }
+        }
+    }
 }
@@ -5,19 +5,32 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.LoadBalancer;
+import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.QueueSorter;
 import hudson.security.ACL;
 import hudson.security.AuthorizationStrategy;
 import hudson.util.CopyOnWriteMap;
+import hudson.util.OneShotEvent;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -30,8 +43,10 @@ import org.htmlunit.html.HtmlButton;
 import org.htmlunit.html.HtmlForm;
 import org.htmlunit.html.HtmlPage;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.WithoutJenkins;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 import org.jvnet.hudson.test.recipes.LocalData;
@@ -440,6 +455,178 @@ class ThrottleJobPropertyTest {
         assertTrue(descriptor.getCategories().isEmpty());
     }
 
+    @Test
+    void derivedCategoriesAreOnlyKeptWhileRegistered(JenkinsRule j) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("deploy-*", 0, 1, null));
+
+        // Lookups, e.g. to validate a name, derive a category without keeping it.
+        ThrottleJobProperty.ThrottleCategory looked = descriptor.getCategoryByName("deploy-eu");
+        assertNotNull(looked);
+        assertTrue(looked.isDerived());
+        assertNotSame(looked, descriptor.getCategoryByName("deploy-eu"));
+
+        descriptor.addThrottledPipeline("job#1", "3", Collections.singletonList("deploy-eu"), null);
+        ThrottleJobProperty.ThrottleCategory registered = descriptor.getCategoryByName("deploy-eu");
+        assertSame(registered, descriptor.getCategoryByName("deploy-eu"));
+        assertTrue(descriptor.getActiveCategories().contains(registered));
+
+        descriptor.removeThrottledPipeline("job#1", "3", null);
+        assertNotSame(registered, descriptor.getCategoryByName("deploy-eu"));
+        assertFalse(
+                descriptor.getActiveCategories().stream().anyMatch(ThrottleJobProperty.ThrottleCategory::isDerived));
+    }
+
+    @Test
+    void sortQueueByCapacityInstallsSorter(JenkinsRule j) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        assertNotNull(descriptor);
+        QueueSorter original = j.jenkins.getQueue().getSorter();
+
+        descriptor.setSortQueueByCapacity(true);
+        QueueSorter installed = j.jenkins.getQueue().getSorter();
+        assertInstanceOf(ThrottleQueueSorter.class, installed);
+        assertSame(original, ((ThrottleQueueSorter) installed).getDelegate());
+
+        descriptor.setSortQueueByCapacity(false);
+        assertSame(original, j.jenkins.getQueue().getSorter());
+    }
+
+    @Test
+    void spreadCategoryBuildsInstallsLoadBalancer(JenkinsRule j) {
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        assertNotNull(descriptor);
+        LoadBalancer original = j.jenkins.getQueue().getLoadBalancer();
+
+        descriptor.setSpreadCategoryBuilds(true);
+        LoadBalancer installed = j.jenkins.getQueue().getLoadBalancer();
+        assertInstanceOf(ThrottleLoadBalancer.class, installed);
+        assertSame(original, ((ThrottleLoadBalancer) installed).getDelegate());
+
+        descriptor.setSpreadCategoryBuilds(false);
+        assertSame(original, j.jenkins.getQueue().getLoadBalancer());
+    }
+
+    @Test
+    void sortQueueByCapacityMovesSaturatedItemsBack(JenkinsRule j) throws Exception {
+        TestUtil.setupCategories(
+                new ThrottleJobProperty.ThrottleCategory("full", 0, 1, null),
+                new ThrottleJobProperty.ThrottleCategory("free", 0, 1, null));
+        Node agent = j.createOnlineSlave();
+        OneShotEvent release = new OneShotEvent();
+        FreeStyleProject running = categoryProject(j, "full");
+        running.setAssignedNode(agent);
+        running.getBuildersList().add(new HoldBuilder(release));
+        FreeStyleBuild b = running.scheduleBuild2(0).waitForStart();
+
+        FreeStyleProject saturated = categoryProject(j, "full");
+        FreeStyleProject unthrottled = j.createFreeStyleProject();
+        FreeStyleProject withRoom = categoryProject(j, "free");
+        List<Queue.BuildableItem> buildables = new ArrayList<>();
+        for (FreeStyleProject p : Arrays.asList(saturated, unthrottled, withRoom)) {
+            buildables.add(new Queue.BuildableItem(
+                    new Queue.WaitingItem(Calendar.getInstance(), p, Collections.emptyList())));
+        }
+
+        new ThrottleQueueSorter(null).sortBuildableItems(buildables);
+        List<Queue.Task> sorted = new ArrayList<>();
+        for (Queue.BuildableItem item : buildables) {
+            sorted.add(item.task);
+        }
+        assertEquals(Arrays.asList(unthrottled, withRoom, saturated), sorted);
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b));
+    }
+
+    @Test
+    void spreadCategoryBuildsPicksEmptiestNode(JenkinsRule j, @TempDir File busyTmp, @TempDir File idleTmp)
+            throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("cat", 0, 0, null));
+        Node busy = TestUtil.setupAgent(j, busyTmp, null, null, 2, "spread");
+        Node idle = TestUtil.setupAgent(j, idleTmp, null, null, 1, "spread");
+        // Always prefer the busy node, so that only the throttle balancer can move builds away from it.
+        j.jenkins.getQueue().setLoadBalancer(new PreferNodeLoadBalancer(busy.getNodeName()));
+        ThrottleJobProperty.fetchDescriptor().setSpreadCategoryBuilds(true);
+
+        OneShotEvent release = new OneShotEvent();
+        FreeStyleProject first = categoryProject(j, "cat");
+        first.setAssignedNode(busy);
+        first.getBuildersList().add(new HoldBuilder(release));
+        FreeStyleBuild b1 = first.scheduleBuild2(0).waitForStart();
+
+        FreeStyleProject second = categoryProject(j, "cat");
+        second.setAssignedLabel(Label.get("spread"));
+        second.getBuildersList().add(new HoldBuilder(release));
+        FreeStyleBuild b2 = second.scheduleBuild2(0).waitForStart();
+        assertSame(idle, b2.getBuiltOn());
+
+        // Builds outside of any category are left to the default decision.
+        FreeStyleProject unthrottled = j.createFreeStyleProject();
+        unthrottled.setAssignedLabel(Label.get("spread"));
+        assertSame(busy, j.buildAndAssertSuccess(unthrottled).getBuiltOn());
+
+        release.signal();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+    }
+
+    private static FreeStyleProject categoryProject(JenkinsRule j, String category) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList(category),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false, // limitOneJobWithMatchingParams
+                null, // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return project;
+    }
+
+    /** Keeps the build running until the event is signalled. */
+    private static class HoldBuilder extends TestBuilder {
+        private final OneShotEvent release;
+
+        HoldBuilder(OneShotEvent release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException {
+            release.block();
+            return true;
+        }
+    }
+
+    /** Assigns every task to a given node if it can run there. */
+    private static class PreferNodeLoadBalancer extends LoadBalancer {
+        private final String nodeName;
+
+        PreferNodeLoadBalancer(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public MappingWorksheet.Mapping map(@NonNull Queue.Task task, MappingWorksheet worksheet) {
+            MappingWorksheet.Mapping mapping = worksheet.new Mapping();
+            for (int i = 0; i < worksheet.works.size(); i++) {
+                List<MappingWorksheet.ExecutorChunk> chunks = worksheet.works(i).applicableExecutorChunks();
+                MappingWorksheet.ExecutorChunk chosen = chunks.stream()
+                        .filter(c -> c.getName().equals(nodeName))
+                        .findFirst()
+                        .orElse(chunks.isEmpty() ? null : chunks.get(0));
+                if (chosen == null) {
+                    return null;
+                }
+                mapping.assign(i, chosen);
+            }
+            return mapping.isCompletelyValid() ? mapping : null;
+        }
+    }
+
     private static void assertProjects(JenkinsRule j, String category, AbstractProject<?, ?>... projects) {
         j.jenkins.setAuthorizationStrategy(new RejectAllAuthorizationStrategy());
         try {
@@ -30,6 +30,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
@@ -505,6 +506,437 @@ class ThrottleStepTest {
                 + "}\n";
     }
 
+    @Test
+    void waitForPermit() throws Exception {
+        TestUtil.setupCategories(TestUtil.TWO_TOTAL);
+
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (String name : Arrays.asList("first", "second", "third")) {
+            WorkflowJob job = j.createProject(WorkflowJob.class);
+            job.setDefinition(new CpsFlowDefinition(
+                    "throttle(categories: ['" + TestUtil.TWO_TOTAL.getCategoryName() + "'], waitForPermit: true) {\n"
+                            + "  semaphore 'wait-" + name + "-job'\n"
+                            + "}\n",
+                    true));
+            runs.add(job.scheduleBuild2(0).waitForStart());
+        }
+        SemaphoreStep.waitForStart("wait-first-job/1", runs.get(0));
+        SemaphoreStep.waitForStart("wait-second-job/1", runs.get(1));
+        j.waitForMessage("Waiting for capacity in categories: " + TestUtil.TWO_TOTAL.getCategoryName(), runs.get(2));
+        // The third build waits inside the step, not in the queue.
+        assertTrue(j.jenkins.getQueue().isEmpty());
+        assertEquals(
+                2,
+                ThrottleJobProperty.fetchDescriptor()
+                        .getThrottledPipelinesForCategory(TestUtil.TWO_TOTAL.getCategoryName())
+                        .size());
+
+        SemaphoreStep.success("wait-first-job/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(0)));
+        SemaphoreStep.waitForStart("wait-third-job/1", runs.get(2));
+
+        SemaphoreStep.success("wait-second-job/1", null);
+        SemaphoreStep.success("wait-third-job/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(1)));
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(2)));
+    }
+
+    @Test
+    void waitersOfRunsNoLongerBuildingAreDropped() throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("one_total", 0, 1, null));
+
+        WorkflowJob holder = j.createProject(WorkflowJob.class);
+        holder.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['one_total'], waitForPermit: true) { semaphore 'hold' }", true));
+        WorkflowRun holderRun = holder.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("hold/1", holderRun);
+
+        // A waiter left behind by a run that was killed without its step being stopped.
+        FreeStyleBuild finished = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        AtomicBoolean granted = new AtomicBoolean();
+        CategoryPermits.Waiter lost = new CategoryPermits.Waiter() {
+            @Override
+            public List<String> getCategories() {
+                return Collections.singletonList("one_total");
+            }
+
+            @Override
+            public void register() {}
+
+            @Override
+            public void granted() {
+                granted.set(true);
+            }
+
+            @Override
+            public String getRunId() {
+                return finished.getExternalizableId();
+            }
+
+            @Override
+            public void deadlocked(String description) {}
+        };
+        assertFalse(CategoryPermits.acquire(lost));
+        assertTrue(CategoryPermits.isWaitingFor("one_total"));
+
+        SemaphoreStep.success("hold/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(holderRun));
+        CategoryPermits.poll();
+        assertFalse(CategoryPermits.isWaitingFor("one_total"));
+        assertFalse(granted.get());
+    }
+
+    @Test
+    void abortedBlockReleasesCapacity() throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("one_total", 0, 1, null));
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition("throttle(['one_total']) { semaphore 'first' }", true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("first/1", firstRun);
+        assertEquals(1, descriptor.getThrottledPipelinesForCategory("one_total").size());
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['one_total'], waitForPermit: true) { semaphore 'second' }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Waiting for capacity in categories: one_total", secondRun);
+
+        // The slot is handed over once the aborted body has unwound.
+        firstRun.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(firstRun));
+        SemaphoreStep.waitForStart("second/1", secondRun);
+        assertEquals(
+                Collections.singleton(secondRun.getExternalizableId()),
+                descriptor.getThrottledPipelinesForCategory("one_total").keySet());
+
+        // A hard kill does not unwind the body, so the registration is dropped when the run completes.
+        secondRun.doKill();
+        j.waitForCompletion(secondRun);
+        assertTrue(descriptor.getThrottledPipelinesForCategory("one_total").isEmpty());
+    }
+
+    @Test
+    void categoryTemplate() throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("deploy-*", 0, 1, null));
+
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (String region : Arrays.asList("eu", "eu", "us")) {
+            WorkflowJob job = j.createProject(WorkflowJob.class);
+            job.setDefinition(new CpsFlowDefinition(
+                    "def region = '" + region + "'\n"
+                            + "throttle(categories: [\"deploy-${region}\"], waitForPermit: true) {\n"
+                            + "  semaphore 'wait-" + job.getName() + "'\n"
+                            + "}\n",
+                    true));
+            runs.add(job.scheduleBuild2(0).waitForStart());
+        }
+        // Each region gets its own category with the limit of the template.
+        SemaphoreStep.waitForStart("wait-" + runs.get(0).getParent().getName() + "/1", runs.get(0));
+        SemaphoreStep.waitForStart("wait-" + runs.get(2).getParent().getName() + "/1", runs.get(2));
+        j.waitForMessage("Waiting for capacity in categories: deploy-eu", runs.get(1));
+        ThrottleJobProperty.DescriptorImpl descriptor = ThrottleJobProperty.fetchDescriptor();
+        assertTrue(descriptor.getCategoryByName("deploy-eu").isDerived());
+        assertEquals(3, descriptor.getActiveCategories().size());
+
+        SemaphoreStep.success("wait-" + runs.get(0).getParent().getName() + "/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(0)));
+        SemaphoreStep.success("wait-" + runs.get(1).getParent().getName() + "/1", null);
+        SemaphoreStep.success("wait-" + runs.get(2).getParent().getName() + "/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(1)));
+        j.assertBuildStatusSuccess(j.waitForCompletion(runs.get(2)));
+        assertEquals(1, descriptor.getActiveCategories().size());
+    }
+
+    @Test
+    void countThrottleBlocks() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 4, "on-agent");
+        ThrottleJobProperty.ThrottleCategory oneBlock =
+                new ThrottleJobProperty.ThrottleCategory("one_block", 0, 1, null);
+        oneBlock.setCountThrottleBlocks(true);
+        TestUtil.setupCategories(oneBlock);
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(['one_block']) {\n"
+                        + "  parallel a: { node('on-agent') { semaphore 'wait-a' } },\n"
+                        + "    b: { node('on-agent') { semaphore 'wait-b' } }\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        // Both branches run although the limit is 1, as the block counts once.
+        SemaphoreStep.waitForStart("wait-a/1", firstRun);
+        SemaphoreStep.waitForStart("wait-b/1", firstRun);
+        assertEquals(2, agent.toComputer().countBusy());
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(new CpsFlowDefinition(
+                "throttle(['one_block']) { node('on-agent') { semaphore 'wait-second' } }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Waiting for capacity in categories: one_block", secondRun);
+        assertTrue(j.jenkins.getQueue().isEmpty());
+
+        SemaphoreStep.success("wait-a/1", null);
+        SemaphoreStep.success("wait-b/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        SemaphoreStep.waitForStart("wait-second/1", secondRun);
+        SemaphoreStep.success("wait-second/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void parentCategoryCountsThrottleBlocksOfChildren() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, "on-agent");
+        ThrottleJobProperty.ThrottleCategory parent = new ThrottleJobProperty.ThrottleCategory("parent", 0, 1, null);
+        parent.setCountThrottleBlocks(true);
+        ThrottleJobProperty.ThrottleCategory child = new ThrottleJobProperty.ThrottleCategory("child", 0, 0, null);
+        child.setParent("parent");
+        TestUtil.setupCategories(parent, child);
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(['child']) {\n"
+                        + "  parallel a: { node('on-agent') { semaphore 'wait-a' } },\n"
+                        + "    b: { node('on-agent') { semaphore 'wait-b' } }\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        // The block counts once in the parent, whatever the number of executors it uses.
+        SemaphoreStep.waitForStart("wait-a/1", firstRun);
+        SemaphoreStep.waitForStart("wait-b/1", firstRun);
+        assertEquals(2, agent.toComputer().countBusy());
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(
+                new CpsFlowDefinition("throttle(['child']) { node('on-agent') { semaphore 'second' } }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Waiting for capacity in categories: child", secondRun);
+
+        SemaphoreStep.success("wait-a/1", null);
+        SemaphoreStep.success("wait-b/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        SemaphoreStep.waitForStart("second/1", secondRun);
+        SemaphoreStep.success("second/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+    }
+
+    @Test
+    void tryOnlyAndTimeout() throws Exception {
+        TestUtil.setupCategories(TestUtil.TWO_TOTAL);
+        String category = TestUtil.TWO_TOTAL.getCategoryName();
+
+        WorkflowJob holder = j.createProject(WorkflowJob.class);
+        holder.setDefinition(new CpsFlowDefinition("throttle(['" + category + "']) { semaphore 'hold' }", true));
+        WorkflowRun firstHolder = holder.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("hold/1", firstHolder);
+        WorkflowRun secondHolder = holder.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("hold/2", secondHolder);
+
+        WorkflowJob tryOnly = j.createProject(WorkflowJob.class);
+        tryOnly.setDefinition(new CpsFlowDefinition(
+                "def acquired = throttle(categories: ['" + category + "'], tryOnly: true) { echo 'inside' }\n"
+                        + "echo \"acquired: ${acquired}\"",
+                true));
+        WorkflowRun skipped = j.buildAndAssertSuccess(tryOnly);
+        j.assertLogContains("No capacity in categories: " + category, skipped);
+        j.assertLogContains("acquired: false", skipped);
+        j.assertLogNotContains("inside", skipped);
+
+        WorkflowJob timeout = j.createProject(WorkflowJob.class);
+        timeout.setDefinition(new CpsFlowDefinition(
+                "def acquired = throttle(categories: ['" + category + "'], timeout: 1) { echo 'inside' }\n"
+                        + "echo \"acquired: ${acquired}\"",
+                true));
+        WorkflowRun timedOut = j.buildAndAssertSuccess(timeout);
+        j.assertLogContains("Timed out waiting for capacity in categories: " + category, timedOut);
+        j.assertLogContains("acquired: false", timedOut);
+        j.assertLogNotContains("inside", timedOut);
+
+        SemaphoreStep.success("hold/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstHolder));
+        WorkflowRun acquired = j.buildAndAssertSuccess(tryOnly);
+        j.assertLogContains("inside", acquired);
+        j.assertLogContains("acquired: true", acquired);
+
+        SemaphoreStep.success("hold/2", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondHolder));
+    }
+
+    @Test
+    void releaseThrottle() throws Exception {
+        TestUtil.setupCategories(new ThrottleJobProperty.ThrottleCategory("one_total", 0, 1, null));
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['one_total'], waitForPermit: true) {\n"
+                        + "  semaphore 'before'\n"
+                        + "  releaseThrottle()\n"
+                        + "  semaphore 'after'\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("before/1", firstRun);
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['one_total'], waitForPermit: true) { semaphore 'second' }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Waiting for capacity in categories: one_total", secondRun);
+
+        SemaphoreStep.success("before/1", null);
+        SemaphoreStep.waitForStart("after/1", firstRun);
+        j.waitForMessage("Released throttle categories: one_total", firstRun);
+        // The second build gets the slot while the first one is still inside its block.
+        SemaphoreStep.waitForStart("second/1", secondRun);
+
+        SemaphoreStep.success("after/1", null);
+        SemaphoreStep.success("second/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+
+        WorkflowJob outside = j.createProject(WorkflowJob.class);
+        outside.setDefinition(new CpsFlowDefinition("releaseThrottle()", true));
+        WorkflowRun failed = j.buildAndAssertStatus(Result.FAILURE, outside);
+        j.assertLogContains("releaseThrottle can only be used inside a throttle block", failed);
+    }
+
+    @Test
+    void suspendPausedBlocks() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, "on-agent");
+        ThrottleJobProperty.ThrottleCategory pausable =
+                new ThrottleJobProperty.ThrottleCategory("pausable", 0, 1, null);
+        pausable.setSuspendPausedBlocks(true);
+        TestUtil.setupCategories(pausable);
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(['pausable']) {\n"
+                        + "  node('on-agent') { semaphore 'first-before' }\n"
+                        + "  waitUntil { semaphore 'pause' }\n"
+                        + "  node('on-agent') { semaphore 'first-after' }\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.success("first-before/1", null);
+        SemaphoreStep.waitForStart("pause/1", firstRun);
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(
+                new CpsFlowDefinition("throttle(['pausable']) { node('on-agent') { semaphore 'second' } }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        // The paused block does not count, so the second build gets the only slot.
+        SemaphoreStep.waitForStart("second/1", secondRun);
+        assertEquals(1, agent.toComputer().countBusy());
+
+        // The resumed block has to wait for the slot again before its next node step may run.
+        SemaphoreStep.success("pause/1", true);
+        while (j.jenkins.getQueue().isEmpty()) {
+            Thread.sleep(10);
+        }
+        j.jenkins.getQueue().maintain();
+        Queue.Item[] items = j.jenkins.getQueue().getItems();
+        assertEquals(1, items.length);
+        assertThat(
+                TestUtil.getBlockageReasons(items[0].getCauseOfBlockage()),
+                hasItem(Messages._ThrottleQueueTaskDispatcher_ResumingAfterPause()
+                        .toString()));
+        assertEquals(1, agent.toComputer().countBusy());
+
+        SemaphoreStep.success("second/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        SemaphoreStep.waitForStart("first-after/1", firstRun);
+        SemaphoreStep.success("first-after/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+    }
+
+    @Test
+    void parentCategorySuspendsPausedBlocksOfChildren() throws Exception {
+        Node agent = TestUtil.setupAgent(j, firstAgentTmp, agents, null, 2, "on-agent");
+        ThrottleJobProperty.ThrottleCategory parent = new ThrottleJobProperty.ThrottleCategory("parent", 0, 1, null);
+        parent.setCountThrottleBlocks(true);
+        parent.setSuspendPausedBlocks(true);
+        ThrottleJobProperty.ThrottleCategory child = new ThrottleJobProperty.ThrottleCategory("child", 0, 0, null);
+        child.setParent("parent");
+        TestUtil.setupCategories(parent, child);
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(['child']) {\n"
+                        + "  waitUntil { semaphore 'pause' }\n"
+                        + "  node('on-agent') { semaphore 'first-after' }\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("pause/1", firstRun);
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(
+                new CpsFlowDefinition("throttle(['child']) { node('on-agent') { semaphore 'second' } }", true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        // Only the parent drops paused blocks, but that is enough for the block of the child to free its slot.
+        SemaphoreStep.waitForStart("second/1", secondRun);
+        assertEquals(1, agent.toComputer().countBusy());
+
+        // The resumed block waits for the slot in the parent before its node step may run.
+        SemaphoreStep.success("pause/1", true);
+        while (j.jenkins.getQueue().isEmpty()) {
+            Thread.sleep(10);
+        }
+        j.jenkins.getQueue().maintain();
+        Queue.Item[] items = j.jenkins.getQueue().getItems();
+        assertEquals(1, items.length);
+        assertThat(
+                TestUtil.getBlockageReasons(items[0].getCauseOfBlockage()),
+                hasItem(Messages._ThrottleQueueTaskDispatcher_ResumingAfterPause()
+                        .toString()));
+
+        SemaphoreStep.success("second/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        SemaphoreStep.waitForStart("first-after/1", firstRun);
+        SemaphoreStep.success("first-after/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+    }
+
+    @Test
+    void deadlockBetweenNestedBlocksIsReported() throws Exception {
+        TestUtil.setupCategories(
+                new ThrottleJobProperty.ThrottleCategory("a", 0, 1, null),
+                new ThrottleJobProperty.ThrottleCategory("b", 0, 1, null));
+
+        WorkflowJob firstJob = j.createProject(WorkflowJob.class);
+        firstJob.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['a'], waitForPermit: true) {\n"
+                        + "  semaphore 'first'\n"
+                        + "  throttle(categories: ['b'], waitForPermit: true) { echo 'first inner' }\n"
+                        + "}\n",
+                true));
+        WorkflowRun firstRun = firstJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("first/1", firstRun);
+
+        WorkflowJob secondJob = j.createProject(WorkflowJob.class);
+        secondJob.setDefinition(new CpsFlowDefinition(
+                "throttle(categories: ['b'], waitForPermit: true) {\n"
+                        + "  semaphore 'second'\n"
+                        + "  throttle(categories: ['a'], waitForPermit: true) { echo 'second inner' }\n"
+                        + "}\n",
+                true));
+        WorkflowRun secondRun = secondJob.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("second/1", secondRun);
+
+        SemaphoreStep.success("first/1", null);
+        j.waitForMessage("Waiting for capacity in categories: b", firstRun);
+        SemaphoreStep.success("second/1", null);
+        j.waitForMessage("Possible deadlock between throttle blocks", secondRun);
+        j.waitForMessage("Possible deadlock between throttle blocks", firstRun);
+
+        secondRun.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(secondRun));
+        // Aborting one side releases its block, so the other one can go on.
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        j.assertLogContains("first inner", firstRun);
+    }
+
     @Test
     void snippetizer() throws Exception {
         TestUtil.setupCategories(TestUtil.ONE_PER_NODE);
@@ -562,4 +994,56 @@ class ThrottleStepTest {
         SemaphoreStep.success("wait-second-job/1", null);
         j.assertBuildStatusSuccess(j.waitForCompletion(secondJobFirstRun));
     }
+
+    @Test
+    void dropOldestSparesNodeBlocks() throws Exception {
+        ThrottleJobProperty.ThrottleCategory capped = new ThrottleJobProperty.ThrottleCategory("capped", 0, 1, null);
+        capped.setMaxQueued(3);
+        capped.setQueueOverflow(ThrottleQueueDecisionHandler.DROP_OLDEST);
+        TestUtil.setupCategories(capped);
+
+        // The node block is the oldest item in the category, but cancelling it would fail the whole run.
+        WorkflowJob pipeline = j.createProject(WorkflowJob.class);
+        pipeline.setDefinition(
+                new CpsFlowDefinition("throttle(['capped']) { node('nowhere') { echo 'inside' } }", true));
+        WorkflowRun run = pipeline.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Still waiting to schedule task", run);
+
+        FreeStyleProject older = createCappedProject();
+        assertNotNull(older.scheduleBuild2(0));
+        Thread.sleep(10); // so that the enqueue times differ
+        FreeStyleProject newer = createCappedProject();
+        assertNotNull(newer.scheduleBuild2(0));
+        assertEquals(3, QueuedCategories.count("capped"));
+
+        FreeStyleProject newest = createCappedProject();
+        assertNotNull(newest.scheduleBuild2(0));
+        assertFalse(older.isInQueue());
+        assertTrue(newer.isInQueue());
+        assertTrue(newest.isInQueue());
+        assertEquals(
+                1,
+                Arrays.stream(j.jenkins.getQueue().getItems())
+                        .filter(item -> !(item.task instanceof FreeStyleProject))
+                        .count());
+
+        j.jenkins.getQueue().clear();
+        j.waitForCompletion(run);
+        j.assertLogNotContains("inside", run);
+    }
+
+    private FreeStyleProject createCappedProject() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("nowhere"));
+        project.addProperty(new ThrottleJobProperty(
+                null, // maxConcurrentPerNode
+                null, // maxConcurrentTotal
+                Collections.singletonList("capped"),
+                true, // throttleEnabled
+                TestUtil.THROTTLE_OPTION_CATEGORY, // throttleOption
+                false, // limitOneJobWithMatchingParams
+                null, // paramsToUseForLimit
+                ThrottleMatrixProjectOptions.DEFAULT));
+        return project;
+    }
 }